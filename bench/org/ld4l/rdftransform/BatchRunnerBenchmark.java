@@ -0,0 +1,159 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWriter;
+
+/**
+ * Compares the two ways BatchTransformer can run a batch of small files: a
+ * fixed pool of one worker per processor, and a (virtual, on Java 21 and
+ * later) thread per file limited only by the memory budget. Reports the
+ * wall time of the batch and the peak number of live platform threads.
+ *
+ * The files are made by dealing the subjects of the input out to the
+ * requested number of N-Triples files, so every file is a small vocabulary
+ * of whole concepts.
+ *
+ * Usage: BatchRunnerBenchmark [input] [files]
+ * Defaults to vocab/skos/rbms/input/rbms_vocabs_skos.rdf and 200 files.
+ */
+public class BatchRunnerBenchmark {
+
+    private static final String DEFAULT_INPUT =
+            "vocab/skos/rbms/input/rbms_vocabs_skos.rdf";
+
+    private static final int DEFAULT_FILES = 200;
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 3;
+
+    private static final ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+
+        File infile = new File(args.length > 0 ? args[0] : DEFAULT_INPUT);
+        int files = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULT_FILES;
+
+        File dir = TransformBenchmark.createTempDir();
+        File indir = new File(dir, "in");
+        splitInput(infile, files, indir);
+
+        System.out.println(files + " files, "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+
+        // The runners take turns, so that neither gets a warmer JIT
+        String[] names = { "fixed pool", "thread per file" };
+        long[] nanos = new long[names.length];
+        int[] peakThreads = new int[names.length];
+        File outdir = new File(dir, "out");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            for (int r = 0; r < names.length; r++) {
+                long elapsed = run(r == 1, indir, outdir);
+                if (i >= WARMUP_ITERATIONS) {
+                    nanos[r] += elapsed;
+                    peakThreads[r] = Math.max(peakThreads[r],
+                            THREADS.getPeakThreadCount());
+                }
+            }
+        }
+
+        System.out.println(String.format("  %-24s %10s %14s",
+                "runner", "ms", "peak threads"));
+        for (int r = 0; r < names.length; r++) {
+            System.out.println(String.format("  %-24s %10.1f %14d",
+                    names[r], nanos[r] / 1e6 / MEASURED_ITERATIONS,
+                    peakThreads[r]));
+        }
+
+        deleteAll(dir);
+    }
+
+    /**
+     * Transform the input directory once, returning the elapsed time.
+     */
+    private static long run(boolean virtualThreads, File indir,
+            File outdir) {
+
+        outdir.mkdir();
+        BatchTransformer batch = new BatchTransformer(indir, outdir, "*.nt",
+                RDFFormat.NTRIPLES,
+                Collections.<TransformerFactory>singletonList(
+                        new SkosRbmsVocabTransformer.Factory()));
+        batch.setVirtualThreads(virtualThreads);
+
+        System.gc();
+        THREADS.resetPeakThreadCount();
+        long start = System.nanoTime();
+        try {
+            batch.transform();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (batch.getMetrics().getCounter(BatchTransformer.FILES_FAILED)
+                > 0) {
+            throw new IllegalStateException("Files failed");
+        }
+        deleteAll(outdir);
+        return elapsed;
+    }
+
+    /**
+     * Write the input's triples to the specified number of N-Triples files,
+     * each subject's triples going to the same file.
+     */
+    private static void splitInput(File infile, int files, File dir)
+            throws IOException {
+
+        dir.mkdir();
+        final List<OutputStream> outStreams = new ArrayList<OutputStream>();
+        final List<StreamRDF> writers = new ArrayList<StreamRDF>();
+        for (int i = 0; i < files; i++) {
+            OutputStream outStream = new FileOutputStream(
+                    new File(dir, String.format("vocab-%05d.nt", i)));
+            StreamRDF writer = StreamRDFWriter.getWriterStream(
+                    outStream, RDFFormat.NTRIPLES);
+            writer.start();
+            outStreams.add(outStream);
+            writers.add(writer);
+        }
+        RDFDataMgr.parse(new StreamRDFBase() {
+            @Override
+            public void triple(Triple triple) {
+                int file = (triple.getSubject().hashCode() & 0x7fffffff)
+                        % writers.size();
+                writers.get(file).triple(triple);
+            }
+        }, infile.getCanonicalPath());
+        for (int i = 0; i < files; i++) {
+            writers.get(i).finish();
+            outStreams.get(i).close();
+        }
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteAll(file);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package org.ld4l.rdftransform;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+/**
+ * Compares N-Triples with RDF Thrift as a format for handing output to
+ * another Jena job: the time to write a graph as a stream, the size of the
+ * file, the time to parse it to a sink that only counts triples, and the
+ * time to parse it into an in-memory graph.
+ *
+ * Usage: BinaryFormatBenchmark [input] [scale ...]
+ * Scaled inputs are generated as in TransformBenchmark. Defaults to
+ * vocab/skos/rbms/input/rbms_vocabs_skos.rdf at scales 1 and 10.
+ */
+public class BinaryFormatBenchmark {
+
+    private static final String DEFAULT_INPUT =
+            "vocab/skos/rbms/input/rbms_vocabs_skos.rdf";
+
+    private static final int[] DEFAULT_SCALES = { 1, 10 };
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final RDFFormat[] FORMATS = {
+        RDFFormat.NTRIPLES,
+        RDFFormat.RDF_THRIFT
+    };
+
+    public static void main(String[] args) throws IOException {
+
+        File infile = new File(args.length > 0 ? args[0] : DEFAULT_INPUT);
+        int[] scales = DEFAULT_SCALES;
+        if (args.length > 1) {
+            scales = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                scales[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File dir = TransformBenchmark.createTempDir();
+        for (int scale : scales) {
+            File scaledInput = scale == 1 ? infile
+                    : TransformBenchmark.createScaledInput(infile, scale, dir);
+            Graph graph = GraphFactory.createDefaultGraph();
+            RDFDataMgr.read(graph, scaledInput.getPath());
+
+            System.out.println();
+            System.out.println("Scale " + scale + "x: " + graph.size()
+                    + " triples");
+            System.out.println(String.format("  %-10s %10s %10s %10s %10s",
+                    "format", "MB", "write ms", "parse ms", "load ms"));
+            for (RDFFormat format : FORMATS) {
+                run(graph, format, dir);
+            }
+            if (scaledInput != infile) {
+                scaledInput.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void run(Graph graph, RDFFormat format, File dir)
+            throws IOException {
+
+        File file = new File(dir, "out."
+                + format.getLang().getFileExtensions().get(0));
+        long write = 0;
+        long parse = 0;
+        long load = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+
+            System.gc();
+            long start = System.nanoTime();
+            OutputStream out = new ChannelOutputStream(
+                    file, ChannelOutputStream.DEFAULT_BUFFER_SIZE);
+            try {
+                StreamRDF writer = StreamRDFWriter.getWriterStream(out, format);
+                writer.start();
+                StreamOps.graphToStream(graph, writer);
+                writer.finish();
+            } finally {
+                out.close();
+            }
+            long written = System.nanoTime();
+
+            TripleCounter counter = new TripleCounter();
+            parse(file, format.getLang(), counter);
+            long parsed = System.nanoTime();
+
+            Graph copy = GraphFactory.createDefaultGraph();
+            RDFDataMgr.read(copy, file.getPath(), format.getLang());
+            long loaded = System.nanoTime();
+
+            if (counter.count != graph.size() || copy.size() != graph.size()) {
+                throw new IllegalStateException(format + " read back "
+                        + counter.count + " triples, not " + graph.size());
+            }
+            if (i < WARMUP_ITERATIONS) {
+                continue;
+            }
+            write += written - start;
+            parse += parsed - written;
+            load += loaded - parsed;
+        }
+
+        System.out.println(String.format(
+                "  %-10s %10.1f %10.1f %10.1f %10.1f",
+                format.getLang().getLabel(), file.length() / 1e6,
+                write / 1e6 / MEASURED_ITERATIONS,
+                parse / 1e6 / MEASURED_ITERATIONS,
+                load / 1e6 / MEASURED_ITERATIONS));
+        file.delete();
+    }
+
+    private static void parse(File file, Lang lang, StreamRDF sink)
+            throws IOException {
+        InputStream in =
+                new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            RDFDataMgr.parse(sink, in, lang);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class TripleCounter extends StreamRDFBase {
+
+        private long count;
+
+        @Override
+        public void triple(Triple triple) {
+            count++;
+        }
+    }
+}
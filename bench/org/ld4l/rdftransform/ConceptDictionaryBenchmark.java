@@ -0,0 +1,87 @@
+package org.ld4l.rdftransform;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the heap used by a HashMap<String, String> and a
+ * ConceptDictionary holding the same label to URI entries, shaped like the
+ * RBMS data: labels of a few words and URIs of the form
+ * http://rbms.info/vocab/<n>. Also times a lookup of every label.
+ *
+ * Usage: ConceptDictionaryBenchmark [entries]
+ * Defaults to 10,000,000 entries, which needs about -Xmx4g for the HashMap.
+ */
+public class ConceptDictionaryBenchmark {
+
+    private static final String RBMS_NS = "http://rbms.info/vocab/";
+
+    private static final int DEFAULT_ENTRIES = 10000000;
+
+    public static void main(String[] args) {
+
+        int entries = args.length > 0
+                ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+
+        System.out.println(String.format("%,d entries", entries));
+        System.out.println(String.format("  %-18s %14s %12s %14s",
+                "structure", "heap MB", "bytes/entry", "lookup ns/op"));
+
+        long before = usedHeap();
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < entries; i++) {
+            map.put(label(i), RBMS_NS + i);
+        }
+        long mapBytes = usedHeap() - before;
+        long mapNanos = timeLookups(map, null, entries);
+        report("HashMap", mapBytes, mapNanos, entries);
+        map = null;
+
+        before = usedHeap();
+        ConceptDictionary dictionary = new ConceptDictionary(RBMS_NS);
+        for (int i = 0; i < entries; i++) {
+            dictionary.put(label(i), RBMS_NS + i);
+        }
+        long dictionaryBytes = usedHeap() - before;
+        long dictionaryNanos = timeLookups(null, dictionary, entries);
+        report("ConceptDictionary", dictionaryBytes, dictionaryNanos,
+                entries);
+    }
+
+    private static String label(int i) {
+        return "Concept label number " + i;
+    }
+
+    /**
+     * Look up every label in whichever structure isn't null, checking the
+     * results, and return the elapsed time.
+     */
+    private static long timeLookups(Map<String, String> map,
+            ConceptDictionary dictionary, int entries) {
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            String label = label(i);
+            String uri = map != null ? map.get(label) : dictionary.get(label);
+            if (uri == null || !uri.endsWith(Integer.toString(i))) {
+                throw new IllegalStateException("Wrong URI for " + label);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String structure, long bytes, long nanos,
+            int entries) {
+        System.out.println(String.format("  %-18s %14.1f %12.1f %14.1f",
+                structure, bytes / 1048576.0, (double) bytes / entries,
+                (double) nanos / entries));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,125 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.jena.riot.RDFFormat;
+
+/**
+ * Compares the Java rewrite loops of SkosRbmsVocabTransformer with the SPARQL
+ * Updates of SparqlRbmsVocabTransformer, on an in-memory model and on a
+ * TDB-backed one. Reports mean time per run for reading the input, for the
+ * rewrites (loadConcepts through transformStringToThing), and for applying
+ * the changes and writing N-Triples.
+ *
+ * Usage: SparqlTransformBenchmark [input] [scale ...]
+ * Scaled inputs are generated as in TransformBenchmark. Defaults to
+ * vocab/skos/rbms/input/rbms_vocabs_skos.rdf at scales 1 and 10.
+ */
+public class SparqlTransformBenchmark {
+
+    private static final String DEFAULT_INPUT =
+            "vocab/skos/rbms/input/rbms_vocabs_skos.rdf";
+
+    private static final int[] DEFAULT_SCALES = { 1, 10 };
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final String[] REWRITE_PHASES = {
+        "loadConcepts",
+        "createConceptSchemes",
+        "transformStringToThing(broader)",
+        "transformStringToThing(narrower)",
+        "transformStringToThing(related)"
+    };
+
+    public static void main(String[] args) throws IOException {
+
+        File infile = new File(args.length > 0 ? args[0] : DEFAULT_INPUT);
+        int[] scales = DEFAULT_SCALES;
+        if (args.length > 1) {
+            scales = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                scales[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File dir = TransformBenchmark.createTempDir();
+        for (int scale : scales) {
+            File scaledInput = scale == 1 ? infile
+                    : TransformBenchmark.createScaledInput(infile, scale, dir);
+            System.out.println();
+            System.out.println("Scale " + scale + "x");
+            System.out.println(String.format("  %-8s %-8s %12s %12s %12s",
+                    "engine", "storage", "read ms", "rewrite ms",
+                    "write ms"));
+            for (boolean sparql : new boolean[] { false, true }) {
+                for (boolean tdb : new boolean[] { false, true }) {
+                    run(scaledInput, sparql, tdb, dir);
+                }
+            }
+            if (scaledInput != infile) {
+                scaledInput.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void run(File infile, boolean sparql, boolean tdb,
+            File dir) {
+
+        File outfile = new File(dir, "out.nt");
+        File tdbDirectory = new File(dir, "tdb");
+        long read = 0;
+        long rewrite = 0;
+        long write = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+
+            System.gc();
+
+            RdfDataTransformer transformer = sparql
+                    ? new SparqlRbmsVocabTransformer(
+                            infile, outfile, RDFFormat.NTRIPLES)
+                    : new SkosRbmsVocabTransformer(
+                            infile, outfile, RDFFormat.NTRIPLES);
+            if (tdb) {
+                deleteDirectory(tdbDirectory);
+                tdbDirectory.mkdir();
+                transformer.setTdbDirectory(tdbDirectory);
+            }
+            transformer.transform();
+
+            if (i < WARMUP_ITERATIONS) {
+                continue;
+            }
+            TransformMetrics metrics = transformer.getMetrics();
+            read += metrics.getPhaseWallNanos("read");
+            for (String phase : REWRITE_PHASES) {
+                rewrite += metrics.getPhaseWallNanos(phase);
+            }
+            write += metrics.getPhaseWallNanos("apply")
+                    + metrics.getPhaseWallNanos("write");
+        }
+        outfile.delete();
+        deleteDirectory(tdbDirectory);
+
+        System.out.println(String.format("  %-8s %-8s %12.1f %12.1f %12.1f",
+                sparql ? "sparql" : "java", tdb ? "tdb" : "memory",
+                read / 1e6 / MEASURED_ITERATIONS,
+                rewrite / 1e6 / MEASURED_ITERATIONS,
+                write / 1e6 / MEASURED_ITERATIONS));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
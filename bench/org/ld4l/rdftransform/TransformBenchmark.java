@@ -0,0 +1,236 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.vocabulary.SKOS;
+
+/**
+ * Times each phase of SkosRbmsVocabTransformer separately: parse,
+ * loadConcepts, createConceptSchemes, transformStringToThing for each
+ * property, and writeNewModel, for each output format. Reports mean time,
+ * throughput in input triples per second, and bytes allocated per run.
+ *
+ * Besides the input file itself, synthetic copies scaled up 10x, 100x, ...
+ * are generated as N-Triples. Each copy duplicates every concept under new
+ * URIs and labels, so labels still resolve within the copy.
+ *
+ * Usage: TransformBenchmark [input] [scale ...]
+ * Defaults to vocab/skos/rbms/input/rbms_vocabs_skos.rdf at scales 1, 10 and
+ * 100. Large scales need a correspondingly large heap (-Xmx).
+ */
+public class TransformBenchmark {
+
+    private static final String DEFAULT_INPUT =
+            "vocab/skos/rbms/input/rbms_vocabs_skos.rdf";
+
+    private static final int[] DEFAULT_SCALES = { 1, 10, 100 };
+
+    private static final RDFFormat[] FORMATS =
+            { RDFFormat.RDFXML, RDFFormat.NTRIPLES, RDFFormat.TURTLE };
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final String RBMS_NS = "http://rbms.info/vocab/";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+
+    /**
+     * Accumulates time and allocation for one phase.
+     */
+    private static class PhaseStats {
+        private long nanos;
+        private long bytes;
+        private int runs;
+    }
+
+    private final Map<String, PhaseStats> stats =
+            new LinkedHashMap<String, PhaseStats>();
+    private long phaseStartNanos;
+    private long phaseStartBytes;
+
+    public static void main(String[] args) throws IOException {
+
+        File infile = new File(args.length > 0 ? args[0] : DEFAULT_INPUT);
+        int[] scales = DEFAULT_SCALES;
+        if (args.length > 1) {
+            scales = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                scales[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File dir = createTempDir();
+        for (int scale : scales) {
+            File scaledInput =
+                    scale == 1 ? infile : createScaledInput(infile, scale, dir);
+            for (RDFFormat format : FORMATS) {
+                new TransformBenchmark().run(scaledInput, scale, format, dir);
+            }
+            if (scaledInput != infile) {
+                scaledInput.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void run(File infile, int scale, RDFFormat format, File dir) {
+
+        File outfile = new File(dir, "out");
+        long triples = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) {
+                stats.clear();
+            }
+
+            System.gc();
+
+            SkosRbmsVocabTransformer transformer =
+                    new SkosRbmsVocabTransformer(infile, outfile, format);
+            startPhase();
+            transformer.readModel();
+            endPhase("parse");
+            triples = transformer.model.size();
+
+            startPhase();
+            transformer.loadConcepts();
+            endPhase("loadConcepts");
+
+            startPhase();
+            transformer.createConceptSchemes();
+            endPhase("createConceptSchemes");
+
+            startPhase();
+            transformer.transformStringToThing(SKOS.broader);
+            endPhase("transformStringToThing(broader)");
+
+            startPhase();
+            transformer.transformStringToThing(SKOS.narrower);
+            endPhase("transformStringToThing(narrower)");
+
+            startPhase();
+            transformer.transformStringToThing(SKOS.related);
+            endPhase("transformStringToThing(related)");
+
+            startPhase();
+            transformer.writeNewModel();
+            endPhase("writeNewModel");
+        }
+        outfile.delete();
+
+        report(scale, format, triples);
+    }
+
+    private void startPhase() {
+        phaseStartBytes = allocatedBytes();
+        phaseStartNanos = System.nanoTime();
+    }
+
+    private void endPhase(String phase) {
+        long nanos = System.nanoTime() - phaseStartNanos;
+        long bytes = allocatedBytes() - phaseStartBytes;
+        PhaseStats phaseStats = stats.get(phase);
+        if (phaseStats == null) {
+            phaseStats = new PhaseStats();
+            stats.put(phase, phaseStats);
+        }
+        phaseStats.nanos += nanos;
+        phaseStats.bytes += bytes;
+        phaseStats.runs++;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private void report(int scale, RDFFormat format, long triples) {
+
+        System.out.println();
+        System.out.println("Scale " + scale + "x (" + triples
+                + " input triples), output " + format);
+        System.out.println(String.format("  %-34s %12s %14s %14s",
+                "phase", "ms/op", "triples/s", "MB alloc/op"));
+        for (Map.Entry<String, PhaseStats> entry : stats.entrySet()) {
+            PhaseStats phaseStats = entry.getValue();
+            double ms = phaseStats.nanos / 1e6 / phaseStats.runs;
+            double mb = phaseStats.bytes / 1048576.0 / phaseStats.runs;
+            System.out.println(String.format("  %-34s %12.1f %14.0f %14.1f",
+                    entry.getKey(), ms, triples / (ms / 1000), mb));
+        }
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("rdf-transform-bench", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    /**
+     * Write scale copies of the input as N-Triples. Copy 0 is the input
+     * itself; copy k appends "-k" to every RBMS URI and " (k)" to every
+     * literal except skos:hasTopConcept, so the number of schemes stays the
+     * same while concepts and labels scale.
+     */
+    static File createScaledInput(File infile, int scale, File dir)
+            throws IOException {
+
+        File scaled = new File(dir, "scaled-" + scale + ".nt");
+        OutputStream outStream = new FileOutputStream(scaled);
+        final StreamRDF writer =
+                StreamRDFWriter.getWriterStream(outStream, RDFFormat.NTRIPLES);
+        writer.start();
+        for (int k = 0; k < scale; k++) {
+            final int copy = k;
+            RDFDataMgr.parse(new StreamRDFBase() {
+                @Override
+                public void triple(Triple triple) {
+                    Node object = triple.getObject();
+                    if (object.isLiteral() && !triple.getPredicate().equals(
+                            SKOS.hasTopConcept.asNode())) {
+                        object = rename(object, copy);
+                    } else if (object.isURI()) {
+                        object = rename(object, copy);
+                    }
+                    writer.triple(Triple.create(rename(triple.getSubject(),
+                            copy), triple.getPredicate(), object));
+                }
+            }, infile.getCanonicalPath());
+        }
+        writer.finish();
+        outStream.close();
+        return scaled;
+    }
+
+    private static Node rename(Node node, int copy) {
+        if (copy == 0) {
+            return node;
+        }
+        if (node.isURI() && node.getURI().startsWith(RBMS_NS)) {
+            return NodeFactory.createURI(node.getURI() + "-" + copy);
+        }
+        if (node.isLiteral()) {
+            return NodeFactory.createLiteral(
+                    node.getLiteralLexicalForm() + " (" + copy + ")");
+        }
+        return node;
+    }
+}
@@ -0,0 +1,51 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A file written under a temporary name in its own directory and renamed
+ * into place once complete, so that it never exists half-written and a
+ * failed write leaves any previous version alone. Callers write to
+ * getTempFile(), call commit() once it is closed, and call abort() in a
+ * finally block: it deletes the temporary file unless it was committed.
+ */
+class AtomicFile {
+
+    private final File file;
+    private final File tempFile;
+    private boolean committed;
+
+    AtomicFile(File file) throws IOException {
+        this.file = file;
+        tempFile = File.createTempFile(file.getName() + ".", ".tmp",
+                file.getAbsoluteFile().getParentFile());
+    }
+
+    File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * Rename the temporary file to the file, replacing it atomically.
+     */
+    void commit() throws IOException {
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Delete the temporary file, unless commit() has renamed it. Return
+     * false if it exists and can't be deleted.
+     */
+    boolean abort() {
+        if (committed) {
+            return true;
+        }
+        return tempFile.delete() || !tempFile.exists();
+    }
+}
@@ -0,0 +1,396 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.riot.RDFFormat;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Transforms every file in a directory that matches a glob, writing one
+ * output file per input file to an output directory. Files are transformed
+ * concurrently on a fixed pool of workers, all in the same JVM, and the
+ * metrics of the individual runs are added up into one aggregate report.
+ *
+ * A memory budget keeps a few large files from running at once: each file
+ * reserves an estimate of the heap its model will need before it starts,
+ * and waits while the budget is used up. A file that needs more than the
+ * whole budget runs on its own.
+ *
+ * Alternatively each file can be given its own thread, a virtual thread 
+ * where the JVM has them (Java 21 and later). Then the memory budget alone
+ * limits how many files are transformed at once, so thousands of small 
+ * files can be in flight while others wait on I/O. The budget is reserved 
+ * before a file's thread is started, so files waiting for the budget hold
+ * no thread.
+ *
+ * Gzipped input files give gzipped output files.
+ */
+public class BatchTransformer {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(BatchTransformer.class);
+
+    // Rough heap needed per byte of input, for an in-memory Jena model
+    private static final int HEAP_BYTES_PER_INPUT_BYTE = 10;
+
+    // Rough size of RDF text per byte of gzipped input
+    private static final int GZIP_EXPANSION = 8;
+
+    // Semaphore permits are counted in units of this many bytes
+    private static final int PERMIT_BYTES = 1 << 20;
+
+    public static final String FILES_TRANSFORMED = "filesTransformed";
+    public static final String FILES_FAILED = "filesFailed";
+
+    private final File indir;
+    private final File outdir;
+    private final String glob;
+    private final RDFFormat format;
+    private final List<TransformerFactory> factories;
+
+    private final TransformMetrics metrics = new TransformMetrics();
+
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private int parallelism = 1;
+    private int outputBufferSize = ChannelOutputStream.DEFAULT_BUFFER_SIZE;
+    private boolean virtualThreads;
+    private boolean streaming;
+    private boolean pipelined;
+    private int pipelineBatchSize = TriplePipeline.DEFAULT_BATCH_SIZE;
+    private boolean labelIndex;
+    private LabelResolver.Matching labelMatching =
+            LabelResolver.Matching.EXACT;
+    // Shared by every file's transformer, so that they mint alike
+    private UriMinter uriMinter = new UriMinter();
+    private boolean incremental;
+    private ChangeSetWriter.Format changeFormat;
+    private boolean compressChanges;
+    private boolean changesOnly;
+    private boolean report;
+    private long turtleStreamingThreshold = 
+            RdfDataTransformer.DEFAULT_TURTLE_STREAMING_THRESHOLD;
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+
+    public BatchTransformer(File indir, File outdir, String glob,
+            RDFFormat format, List<TransformerFactory> factories) {
+        this.indir = indir;
+        this.outdir = outdir;
+        this.glob = glob;
+        this.format = format;
+        this.factories = factories;
+    }
+
+    /**
+     * Number of files transformed at the same time.
+     */
+    public void setJobs(int jobs) {
+        this.jobs = jobs;
+    }
+
+    /**
+     * Run each file on its own (virtual, if available) thread instead of 
+     * on a pool of jobs workers.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Parallelism of each individual transformer.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+
+    public void setLabelIndex(boolean labelIndex) {
+        this.labelIndex = labelIndex;
+    }
+
+    public void setLabelMatching(LabelResolver.Matching labelMatching) {
+        this.labelMatching = labelMatching;
+    }
+
+    public void setUriMinter(UriMinter uriMinter) {
+        this.uriMinter = uriMinter;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public void setChangeFormat(ChangeSetWriter.Format changeFormat) {
+        this.changeFormat = changeFormat;
+    }
+
+    public void setCompressChanges(boolean compressChanges) {
+        this.compressChanges = compressChanges;
+    }
+
+    public void setChangesOnly(boolean changesOnly) {
+        this.changesOnly = changesOnly;
+    }
+
+    public void setTurtleStreamingThreshold(long turtleStreamingThreshold) {
+        this.turtleStreamingThreshold = turtleStreamingThreshold;
+    }
+
+    /**
+     * The aggregate report will be written; see 
+     * RdfDataTransformer.setReport().
+     */
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+
+    /**
+     * Bytes of heap that the files being transformed at one time may be
+     * estimated to use. Defaults to three quarters of the maximum heap.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public TransformMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void transform() throws IOException {
+
+        List<File> infiles = listInputFiles();
+        Map<File, File> outfiles = getOutputFiles(infiles);
+        ExecutorService executor = virtualThreads 
+                ? newThreadPerFileExecutor() 
+                : Executors.newFixedThreadPool(jobs);
+        LOGGER.info("Transforming " + infiles.size() + " files from "
+                + indir + (virtualThreads ? " with a thread per file" 
+                        : " with " + jobs + " workers"));
+
+        final int budgetPermits =
+                (int) Math.max(1, memoryBudget / PERMIT_BYTES);
+        final Semaphore budget = new Semaphore(budgetPermits, true);
+
+        long startNanos = System.nanoTime();
+        metrics.startPhase("batch");
+        try {
+            for (final File infile : infiles) {
+                final File outfile = outfiles.get(infile);
+                final int permits = 
+                        Math.min(budgetPermits, estimatePermits(infile));
+                if (virtualThreads) {
+                    budget.acquire(permits);
+                }
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!virtualThreads) {
+                            budget.acquireUninterruptibly(permits);
+                        }
+                        try {
+                            transformFile(infile, outfile);
+                        } finally {
+                            budget.release(permits);
+                        }
+                    }
+                };
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    if (virtualThreads) {
+                        budget.release(permits);
+                    }
+                    throw e;
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+            metrics.endPhase();
+        }
+        
+        // The per-file rates add up to nonsense: use the batch's own
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        metrics.setCounter("bytesWrittenPerSecond",
+                metrics.getCounter("bytesWritten") * 1000000000L / nanos);
+
+        LOGGER.info("Transformed " + metrics.getCounter(FILES_TRANSFORMED)
+                + " files; " + metrics.getCounter(FILES_FAILED) + " failed");
+    }
+
+    /**
+     * Write the aggregate report to batch-report.json in the output
+     * directory.
+     */
+    public void writeReport() {
+        metrics.writeReport(new File(outdir, "batch-report.json"));
+    }
+
+    /**
+     * Transform one file, recording it as failed on any error, including 
+     * an OutOfMemoryError from a file too big for its share of the heap: 
+     * its model is garbage once the transformer is dropped, so the rest of
+     * the batch can still run.
+     */
+    private void transformFile(File infile, File outfile) {
+
+        RdfDataTransformer transformer = null;
+        try {
+            transformer = TransformerChain.create(
+                    factories, infile, outfile, format, streaming);
+            transformer.setParallelism(parallelism);
+            transformer.setPipelined(pipelined);
+            transformer.setPipelineBatchSize(pipelineBatchSize);
+            transformer.setOutputBufferSize(outputBufferSize);
+            transformer.setLabelIndex(labelIndex);
+            transformer.setLabelMatching(labelMatching);
+            transformer.setUriMinter(uriMinter);
+            transformer.setIncremental(incremental);
+            transformer.setChangeFormat(changeFormat);
+            transformer.setCompressChanges(compressChanges);
+            transformer.setChangesOnly(changesOnly);
+            transformer.setReport(report);
+            transformer.setTurtleStreamingThreshold(
+                    turtleStreamingThreshold);
+            transformer.transform();
+            metrics.increment(FILES_TRANSFORMED, 1);
+            LOGGER.debug("Transformed " + infile + " to " + outfile);
+        } catch (Throwable e) {
+            // One bad file shouldn't stop the batch
+            LOGGER.error("Failed to transform " + infile + ": "
+                    + (e instanceof Error ? e.toString() : e.getMessage()));
+            metrics.increment(FILES_FAILED, 1);
+        } finally {
+            if (transformer != null) {
+                transformer.getMetrics().endPhase();
+                metrics.add(transformer.getMetrics());
+            }
+        }
+    }
+
+    /**
+     * Return an executor that starts a virtual thread per task, or, before 
+     * Java 21, a platform thread per task. Looked up reflectively so that 
+     * the code still builds and runs on older JVMs.
+     */
+    private static ExecutorService newThreadPerFileExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warn("Virtual threads need Java 21 or later; using a "
+                    + "platform thread per file");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private List<File> listInputFiles() throws IOException {
+
+        List<File> infiles = new ArrayList<File>();
+        DirectoryStream<Path> stream =
+                Files.newDirectoryStream(indir.toPath(), glob);
+        try {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    infiles.add(path.toFile());
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(infiles);
+        return infiles;
+    }
+
+    /**
+     * Return the output file of each input file, in input order. Throws 
+     * IOException if two input files would be written to the same output 
+     * file, such as a.rdf and a.ttl, or in incremental mode if an output
+     * file would be gzipped, before any is transformed.
+     */
+    private Map<File, File> getOutputFiles(List<File> infiles) 
+            throws IOException {
+
+        Map<File, File> outfiles = new LinkedHashMap<File, File>();
+        Map<File, File> sources = new HashMap<File, File>();
+        for (File infile : infiles) {
+            File outfile = getOutputFile(infile);
+            // The previous output is patched line by line
+            if (incremental && Compression.forName(outfile.getName()) 
+                    != Compression.NONE) {
+                throw new IOException("Incremental mode can't write "
+                        + "compressed output: " + infile + " would be "
+                        + "written to " + outfile);
+            }
+            File other = sources.put(outfile, infile);
+            if (other != null) {
+                throw new IOException(other + " and " + infile 
+                        + " would both be written to " + outfile);
+            }
+            outfiles.put(infile, outfile);
+        }
+        return outfiles;
+    }
+
+    /**
+     * The output file has the name of the input file, with its extension
+     * replaced by the standard one for the output format, and .gz added if
+     * the input is gzipped.
+     */
+    private File getOutputFile(File infile) {
+
+        Compression compression = Compression.forName(infile.getName());
+        String name = compression.stripExtension(infile.getName());
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        String extension =
+                format.getLang().getFileExtensions().get(0);
+        return new File(outdir, name + "." + extension
+                + compression.getExtension());
+    }
+
+    private int estimatePermits(File infile) {
+        long bytes = infile.length() * HEAP_BYTES_PER_INPUT_BYTE;
+        if (Compression.forName(infile.getName()) != Compression.NONE) {
+            bytes *= GZIP_EXPANSION;
+        }
+        return (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, bytes / PERMIT_BYTES));
+    }
+}
@@ -0,0 +1,126 @@
+package org.ld4l.rdftransform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.rdf.model.Statement;
+
+/**
+ * Append-only buffer of the triples to assert or retract during a transform.
+ * Unlike a Model, it keeps no indexes: the triples are only ever read back
+ * once, in order, when they are applied to the target graph.
+ */
+public class ChangeLog implements Iterable<Triple> {
+
+    private final List<Triple> triples;
+
+    // Only used when deduplication is requested
+    private final Set<Triple> seen;
+
+    public ChangeLog() {
+        this(false);
+    }
+
+    /**
+     * @param dedup - if true, a triple that has already been logged is
+     * ignored. Costs a hash set entry per triple, so only worth it when many
+     * duplicates are expected.
+     */
+    public ChangeLog(boolean dedup) {
+        triples = new ArrayList<Triple>();
+        seen = dedup ? new HashSet<Triple>() : null;
+    }
+
+    public void add(Triple triple) {
+        if (seen != null && !seen.add(triple)) {
+            return;
+        }
+        triples.add(triple);
+    }
+
+    public void add(Statement stmt) {
+        add(stmt.asTriple());
+    }
+
+    public void add(Resource subject, Property property, RDFNode object) {
+        add(Triple.create(
+                subject.asNode(), property.asNode(), object.asNode()));
+    }
+
+    public void add(Resource subject, Property property, String literal) {
+        add(subject, property, ResourceFactory.createPlainLiteral(literal));
+    }
+
+    /**
+     * Append all triples logged in another ChangeLog, e.g. one filled by a
+     * worker thread.
+     */
+    public void addAll(ChangeLog other) {
+        if (seen == null) {
+            triples.addAll(other.triples);
+            return;
+        }
+        for (Triple triple : other.triples) {
+            add(triple);
+        }
+    }
+
+    public int size() {
+        return triples.size();
+    }
+
+    public boolean isEmpty() {
+        return triples.isEmpty();
+    }
+
+    /**
+     * Iterate over the logged triples in the order they were logged.
+     */
+    @Override
+    public Iterator<Triple> iterator() {
+        return Collections.unmodifiableList(triples).iterator();
+    }
+
+    /**
+     * Add all logged triples to the model in a single batch.
+     */
+    public void addTo(Model model) {
+        GraphUtil.add(model.getGraph(), triples);
+    }
+
+    /**
+     * Delete all logged triples from the model in a single batch.
+     */
+    public void removeFrom(Model model) {
+        GraphUtil.delete(model.getGraph(), triples);
+    }
+
+    /**
+     * Add the logged triples from index from (inclusive) to index to 
+     * (exclusive) to the model, e.g. to commit a large log in several 
+     * transactions.
+     */
+    public void addTo(Model model, int from, int to) {
+        GraphUtil.add(model.getGraph(), triples.subList(from, to));
+    }
+
+    /**
+     * Delete the logged triples from index from (inclusive) to index to 
+     * (exclusive) from the model.
+     */
+    public void removeFrom(Model model, int from, int to) {
+        GraphUtil.delete(model.getGraph(), triples.subList(from, to));
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+
+/**
+ * Writes the changes a transformer makes to its input, so that a consumer
+ * holding the input in a triple store can apply the delta instead of
+ * reloading the whole output. Two formats:
+ *
+ *   PATCH     one RDF Patch file, <output>.rdfp, holding a transaction
+ *             (TX . ... TC .) per call to write(): a D row per retracted
+ *             triple, then an A row per asserted triple
+ *   NTRIPLES  paired N-Triples files, <output>.deletes.nt and
+ *             <output>.inserts.nt, to be applied in that order
+ *
+ * Triples are streamed to the files as they are written, through gzip if
+ * requested, in which case the file names end in .gz. Like the output file,
+ * the files are written under temporary names and renamed by close().
+ */
+public class ChangeSetWriter {
+
+    public enum Format { PATCH, NTRIPLES }
+
+    private final Format format;
+    private final List<AtomicFile> files = new ArrayList<AtomicFile>();
+    private final List<AWriter> writers = new ArrayList<AWriter>();
+    private final NodeFormatter formatter = new NodeFormatterNT();
+    private long triplesDeleted;
+    private long triplesAdded;
+
+    /**
+     * @param outfile - the transformer's output file, which the change set
+     * files are named after. If a file can't be opened, those already 
+     * opened are closed and deleted.
+     */
+    public ChangeSetWriter(File outfile, Format format, boolean gzip,
+            int bufferSize) throws IOException {
+
+        this.format = format;
+        String suffix = gzip ? ".gz" : "";
+        boolean opened = false;
+        try {
+            if (format == Format.PATCH) {
+                open(new File(outfile.getPath() + ".rdfp" + suffix), gzip,
+                        bufferSize);
+            } else {
+                open(new File(outfile.getPath() + ".deletes.nt" + suffix), 
+                        gzip, bufferSize);
+                open(new File(outfile.getPath() + ".inserts.nt" + suffix), 
+                        gzip, bufferSize);
+            }
+            opened = true;
+        } finally {
+            // The caller never gets this instance to abort
+            if (!opened) {
+                abort();
+            }
+        }
+    }
+
+    private void open(File file, boolean gzip, int bufferSize)
+            throws IOException {
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        files.add(atomicFile);
+        OutputStream out = 
+                new ChannelOutputStream(atomicFile.getTempFile(), bufferSize);
+        if (gzip) {
+            out = new ParallelGzipOutputStream(out);
+        }
+        writers.add(IO.wrapUTF8(out));
+    }
+
+    /**
+     * Append a set of changes, to be applied retractions first.
+     */
+    public void write(ChangeLog retractions, ChangeLog assertions) {
+
+        if (format == Format.PATCH) {
+            AWriter writer = writers.get(0);
+            writer.write("TX .\n");
+            writeTriples(writer, "D ", retractions);
+            writeTriples(writer, "A ", assertions);
+            writer.write("TC .\n");
+        } else {
+            writeTriples(writers.get(0), "", retractions);
+            writeTriples(writers.get(1), "", assertions);
+        }
+        triplesDeleted += retractions.size();
+        triplesAdded += assertions.size();
+    }
+
+    private void writeTriples(AWriter writer, String prefix,
+            ChangeLog changes) {
+
+        for (Triple triple : changes) {
+            writer.write(prefix);
+            formatter.format(writer, triple.getSubject());
+            writer.write(" ");
+            formatter.format(writer, triple.getPredicate());
+            writer.write(" ");
+            formatter.format(writer, triple.getObject());
+            writer.write(" .\n");
+        }
+    }
+
+    public long getTriplesDeleted() {
+        return triplesDeleted;
+    }
+
+    public long getTriplesAdded() {
+        return triplesAdded;
+    }
+
+    /**
+     * Finish the files and move them into place.
+     */
+    public void close() throws IOException {
+
+        for (AWriter writer : writers) {
+            writer.close();
+        }
+        for (AtomicFile file : files) {
+            file.commit();
+        }
+    }
+
+    /**
+     * Close the files and delete them, after a failed transform. Files that
+     * close() has already moved into place are left.
+     */
+    public void abort() {
+
+        for (AWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (RuntimeException e) {
+                // Already failing; the file is deleted anyway
+            }
+        }
+        for (AtomicFile file : files) {
+            file.abort();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream that collects writes in a large buffer and drains it to a
+ * FileChannel only when the buffer is full, so that serializers issuing many
+ * small writes (e.g. one per N-Triples line) don't cost a system call each.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long bytesWritten;
+    private boolean closed;
+
+    public ChannelOutputStream(File file, int bufferSize) throws IOException {
+        channel = new FileOutputStream(file, false).getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+            throws IOException {
+
+        bytesWritten += length;
+
+        // Too big to be worth copying: write straight through
+        if (length >= buffer.capacity()) {
+            drain();
+            writeFully(ByteBuffer.wrap(bytes, offset, length));
+            return;
+        }
+
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Drain the buffer to the channel. Doesn't force the channel to disk.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Append the contents of a file, letting the channels copy the bytes
+     * directly (FileChannel.transferTo) instead of passing them through the
+     * buffer.
+     */
+    public void transferFrom(File file) throws IOException {
+        drain();
+        FileChannel source = new FileInputStream(file).getChannel();
+        try {
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(
+                        position, size - position, channel);
+            }
+            bytesWritten += size;
+        } finally {
+            source.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compression of input and output files, recognized by file name extension
+ * and, for input, by the first bytes of the file. Only gzip can be read and
+ * written: java.util.zip has no bzip2 or Zstandard codec, so those files are
+ * recognized only to be rejected with a clear message rather than parsed as
+ * garbage.
+ */
+public enum Compression {
+
+    NONE("", null),
+    GZIP(".gz", new byte[] { 0x1f, (byte) 0x8b }),
+    BZIP2(".bz2", new byte[] { 'B', 'Z', 'h' }),
+    ZSTD(".zst", new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd });
+
+    private final String extension;
+    private final byte[] magic;
+
+    private Compression(String extension, byte[] magic) {
+        this.extension = extension;
+        this.magic = magic;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public boolean isSupported() {
+        return this == NONE || this == GZIP;
+    }
+
+    /**
+     * Return the compression implied by a file name's extension.
+     */
+    public static Compression forName(String name) {
+        String lowerName = name.toLowerCase();
+        for (Compression compression : values()) {
+            if (compression != NONE
+                    && lowerName.endsWith(compression.extension)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Return the compression of an existing file, from its first bytes.
+     */
+    public static Compression detect(File file) throws IOException {
+
+        byte[] header = new byte[4];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while (length < header.length
+                    && (n = in.read(header, length, header.length - length))
+                            > 0) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        for (Compression compression : values()) {
+            if (compression.magic != null
+                    && compression.matches(header, length)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    private boolean matches(byte[] header, int length) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove this compression's extension from a file name, e.g. to find
+     * the RDF language of x.nt.gz from x.nt.
+     */
+    public String stripExtension(String name) {
+        if (this != NONE && name.toLowerCase().endsWith(extension)) {
+            return name.substring(0, name.length() - extension.length());
+        }
+        return name;
+    }
+}
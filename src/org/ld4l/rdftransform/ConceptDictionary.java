@@ -0,0 +1,476 @@
+package org.ld4l.rdftransform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compact map from concept labels to concept URIs, for vocabularies too big
+ * for a HashMap<String, String>: that costs several hundred bytes per entry
+ * in objects and headers, where this costs about 30 bytes plus the UTF-8
+ * bytes of the label.
+ *
+ * Labels are stored as UTF-8 bytes packed into one growing byte array, the
+ * arena, and indexed by an open-addressing hash table of entry numbers. A
+ * URI that is one of the known prefixes followed by a decimal integer (e.g.
+ * http://rbms.info/vocab/1234) is stored as the prefix number and the
+ * integer; any other URI is stored in the arena like a label.
+ *
+ * A label put with several URIs is marked as shared, and keeps the URI
+ * that comes first in concept order (see compareUris), so that it resolves
+ * to the same concept whatever order the URIs are put in. Not
+ * synchronized: safe for concurrent reads once all entries are put. Lookups
+ * hash and compare the label's UTF-8 encoding as they go rather than
+ * encoding it to a byte array, so they allocate nothing.
+ */
+public class ConceptDictionary implements LabelIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Marks a URI stored whole in the arena rather than as prefix + number
+    private static final byte NO_PREFIX = -1;
+
+    // Longest numeric suffix that is sure to fit in a long
+    private static final int MAX_SUFFIX_DIGITS = 18;
+
+    private final String[] uriPrefixes;
+
+    private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+    private int arenaSize;
+
+    // Per entry: arena offset of the label, and the URI as either a prefix
+    // number and integer suffix, or NO_PREFIX and the arena offset of the
+    // URI. Arena records are a varint length followed by the bytes.
+    private int[] labelOffsets = new int[INITIAL_CAPACITY];
+    private byte[] uriPrefixNums = new byte[INITIAL_CAPACITY];
+    private long[] uriValues = new long[INITIAL_CAPACITY];
+    private int size;
+
+    // Hash table: entry number + 1 (0 marks an empty slot), and the hash of
+    // the entry's label so most mismatches are rejected without comparing
+    // bytes. The table is kept at most three quarters full.
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+
+    // Entries whose label was put with more than one URI
+    private final BitSet shared = new BitSet();
+
+    /**
+     * @param uriPrefixes - URI prefixes for which integer suffixes are
+     * stored as numbers. At most 127.
+     */
+    public ConceptDictionary(String... uriPrefixes) {
+        if (uriPrefixes.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many URI prefixes");
+        }
+        this.uriPrefixes = uriPrefixes.clone();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(String label) {
+        int entry = getId(label);
+        return entry < 0 ? null : getUri(entry);
+    }
+
+    /**
+     * Return the entry number of the label, or -1 if it isn't present.
+     */
+    @Override
+    public int getId(String label) {
+        int hash = hash(label);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            if (slotHashes[slot] == hash
+                    && labelEquals(slots[slot] - 1, label)) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getIdLimit() {
+        return size;
+    }
+
+    public void put(String label, String uri) {
+
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int slot = findSlot(bytes, hash);
+        int entry;
+        if (slots[slot] != 0) {
+            entry = slots[slot] - 1;
+            String current = getUri(entry);
+            if (uri.equals(current)) {
+                return;
+            }
+            shared.set(entry);
+            if (compareUris(uri, current) > 0) {
+                return;
+            }
+        } else {
+            if (size == labelOffsets.length) {
+                growEntries();
+            }
+            entry = size++;
+            labelOffsets[entry] = append(bytes);
+            slots[slot] = entry + 1;
+            slotHashes[slot] = hash;
+            if (size > slots.length / 4 * 3) {
+                rehash();
+            }
+        }
+        setUri(entry, uri);
+    }
+
+    /**
+     * Whether the entry's label was put with more than one URI.
+     */
+    public boolean isShared(int entry) {
+        return shared.get(entry);
+    }
+
+    /**
+     * Number of labels put with more than one URI.
+     */
+    public int getSharedCount() {
+        return shared.cardinality();
+    }
+
+    /**
+     * Compare URIs in concept order: a URI that is one of the known 
+     * prefixes followed by a decimal integer comes first, ordered by prefix
+     * number and then by the integer, so http://rbms.info/vocab/112 comes 
+     * before http://rbms.info/vocab/1345. Any other URI comes after them, 
+     * in String order.
+     */
+    int compareUris(String a, String b) {
+        int prefixA = prefixNum(a);
+        int prefixB = prefixNum(b);
+        if (prefixA != prefixB) {
+            return prefixA < prefixB ? -1 : 1;
+        }
+        if (prefixA == Integer.MAX_VALUE) {
+            return a.compareTo(b);
+        }
+        int start = uriPrefixes[prefixA].length();
+        long numberA = parseSuffix(a, start);
+        long numberB = parseSuffix(b, start);
+        return numberA < numberB ? -1 : numberA == numberB ? 0 : 1;
+    }
+
+    /**
+     * Return the number of the prefix the URI would be stored under, or 
+     * Integer.MAX_VALUE if it would be stored whole.
+     */
+    private int prefixNum(String uri) {
+        for (int i = 0; i < uriPrefixes.length; i++) {
+            if (uri.startsWith(uriPrefixes[i]) 
+                    && parseSuffix(uri, uriPrefixes[i].length()) >= 0) {
+                return i;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Return the label of an entry. Entries are numbered from 0 in the order
+     * their labels were first put.
+     */
+    @Override
+    public String getLabel(int entry) {
+        return readString(labelOffsets[entry]);
+    }
+
+    @Override
+    public String getUri(int entry) {
+        byte prefixNum = uriPrefixNums[entry];
+        if (prefixNum != NO_PREFIX) {
+            return uriPrefixes[prefixNum] + uriValues[entry];
+        }
+        return readString((int) uriValues[entry]);
+    }
+
+    /**
+     * Bytes of heap held by the arrays, including unused capacity.
+     */
+    public long getAllocatedBytes() {
+        return arena.length + labelOffsets.length * 4L
+                + uriPrefixNums.length + uriValues.length * 8L
+                + slots.length * 4L + slotHashes.length * 4L;
+    }
+
+    private void setUri(int entry, String uri) {
+        for (int i = 0; i < uriPrefixes.length; i++) {
+            String prefix = uriPrefixes[i];
+            if (uri.startsWith(prefix)) {
+                long number = parseSuffix(uri, prefix.length());
+                if (number >= 0) {
+                    uriPrefixNums[entry] = (byte) i;
+                    uriValues[entry] = number;
+                    return;
+                }
+            }
+        }
+        uriPrefixNums[entry] = NO_PREFIX;
+        uriValues[entry] = append(uri.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readString(int offset) {
+        int length = readLength(offset);
+        offset += lengthSize(length);
+        return new String(arena, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return the integer that the URI ends with after the prefix, or -1 if
+     * the rest of the URI isn't an integer that Long.toString() would write
+     * the same way.
+     */
+    private static long parseSuffix(String uri, int start) {
+        int digits = uri.length() - start;
+        if (digits == 0 || digits > MAX_SUFFIX_DIGITS
+                || (uri.charAt(start) == '0' && digits > 1)) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * Return the slot holding the label, or the empty slot where it would
+     * go.
+     */
+    private int findSlot(byte[] label, int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            if (slotHashes[slot] == hash
+                    && labelEquals(slots[slot] - 1, label)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean labelEquals(int entry, byte[] label) {
+        int offset = labelOffsets[entry];
+        int length = readLength(offset);
+        if (length != label.length) {
+            return false;
+        }
+        offset += lengthSize(length);
+        for (int i = 0; i < length; i++) {
+            if (arena[offset + i] != label[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean labelEquals(int entry, String label) {
+        int offset = labelOffsets[entry];
+        int length = readLength(offset);
+        offset += lengthSize(length);
+        int end = offset + length;
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c < 0x80) {
+                if (offset == end || arena[offset++] != c) {
+                    return false;
+                }
+                continue;
+            }
+            int codePoint = codePointAt(label, i);
+            if (codePoint > Character.MAX_VALUE) {
+                i++;
+            }
+            int utf8Length = utf8Length(codePoint);
+            if (offset + utf8Length > end) {
+                return false;
+            }
+            for (int k = 0; k < utf8Length; k++) {
+                if (arena[offset++] != utf8Byte(codePoint, utf8Length, k)) {
+                    return false;
+                }
+            }
+        }
+        return offset == end;
+    }
+
+    private void rehash() {
+        int[] oldSlots = slots;
+        int[] oldHashes = slotHashes;
+        slots = new int[oldSlots.length * 2];
+        slotHashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == 0) {
+                continue;
+            }
+            int slot = oldHashes[i] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = oldSlots[i];
+            slotHashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * Grow the entry arrays by half, rather than doubling them, to limit
+     * unused capacity. The arena grows the same way.
+     */
+    private void growEntries() {
+        int capacity = labelOffsets.length + (labelOffsets.length >> 1);
+        labelOffsets = Arrays.copyOf(labelOffsets, capacity);
+        uriPrefixNums = Arrays.copyOf(uriPrefixNums, capacity);
+        uriValues = Arrays.copyOf(uriValues, capacity);
+    }
+
+    /**
+     * Append a length-prefixed record to the arena and return its offset.
+     */
+    private int append(byte[] bytes) {
+        int needed = lengthSize(bytes.length) + bytes.length;
+        if (arenaSize + needed > arena.length) {
+            long capacity = Math.max(arena.length + (arena.length >> 1),
+                    (long) arenaSize + needed);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException(
+                        "Concept dictionary arena is full");
+            }
+            arena = Arrays.copyOf(arena, (int) capacity);
+        }
+        int offset = arenaSize;
+        int length = bytes.length;
+        while (length >= 0x80) {
+            arena[arenaSize++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        arena[arenaSize++] = (byte) length;
+        System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+        arenaSize += bytes.length;
+        return offset;
+    }
+
+    private int readLength(int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = arena[offset++];
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static int lengthSize(int length) {
+        int bytes = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * FNV-1a, with a final mix so that the low bits used for the slot
+     * depend on every byte. LabelIndexFile uses the same hash.
+     */
+    static int hash(byte[] bytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Return the same hash as hash(label.getBytes(UTF_8)), without
+     * encoding the label.
+     */
+    static int hash(String label) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c < 0x80) {
+                hash ^= c;
+                hash *= 0x01000193;
+                continue;
+            }
+            int codePoint = codePointAt(label, i);
+            if (codePoint > Character.MAX_VALUE) {
+                i++;
+            }
+            int utf8Length = utf8Length(codePoint);
+            for (int k = 0; k < utf8Length; k++) {
+                hash ^= utf8Byte(codePoint, utf8Length, k);
+                hash *= 0x01000193;
+            }
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    /**
+     * Return the code point at index i, reading a surrogate pair as one
+     * code point. A lone surrogate is read as '?', which is how
+     * String.getBytes() encodes it.
+     */
+    static int codePointAt(String string, int i) {
+        char c = string.charAt(i);
+        if (!Character.isSurrogate(c)) {
+            return c;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                && Character.isLowSurrogate(string.charAt(i + 1))) {
+            return Character.toCodePoint(c, string.charAt(i + 1));
+        }
+        return '?';
+    }
+
+    static int utf8Length(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2
+                : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    /**
+     * Return byte k of the UTF-8 encoding of a code point that encodes to
+     * utf8Length bytes.
+     */
+    static byte utf8Byte(int codePoint, int utf8Length, int k) {
+        if (utf8Length == 1) {
+            return (byte) codePoint;
+        }
+        int shift = 6 * (utf8Length - 1 - k);
+        if (k == 0) {
+            return (byte) ((0xf00 >> utf8Length) | (codePoint >> shift));
+        }
+        return (byte) (0x80 | ((codePoint >> shift) & 0x3f));
+    }
+}
@@ -0,0 +1,35 @@
+package org.ld4l.rdftransform;
+
+/**
+ * Read access to a map from concept labels to concept URIs.
+ */
+public interface LabelIndex {
+
+    /**
+     * Return the URI of the concept with the specified label, or null if
+     * there is none.
+     */
+    String get(String label);
+
+    /**
+     * Return a number identifying the concept with the specified label,
+     * from 0 to getIdLimit() - 1, or -1 if there is none. Doesn't allocate,
+     * so callers can keep per-concept objects in an array indexed by id.
+     */
+    int getId(String label);
+
+    /**
+     * Return the URI of the concept with the specified id.
+     */
+    String getUri(int id);
+
+    /**
+     * Return the label of the concept with the specified id, or null if no
+     * concept has that id: ids below getIdLimit() needn't all be in use.
+     */
+    String getLabel(int id);
+
+    int getIdLimit();
+
+    int size();
+}
@@ -0,0 +1,293 @@
+package org.ld4l.rdftransform;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A label to URI index persisted as a file and read through a read-only
+ * memory mapping, so it can be queried by later runs and other tools
+ * without rebuilding it and without putting it on the heap.
+ *
+ * The file is a hash table, big-endian throughout:
+ *
+ *   magic       8 bytes, "LD4LLIX1"
+ *   slotCount   int, a power of 2
+ *   entryCount  int
+ *   inputHash   32 bytes, SHA-256 of the RDF file the index was built from
+ *   slots       slotCount ints: file offset of an entry, or 0 if empty
+ *   entries     int hash, int label length, label (UTF-8),
+ *               int URI length, URI (UTF-8)
+ *
+ * A label is looked up by hashing its UTF-8 bytes (see
+ * ConceptDictionary.hash) and probing linearly from slot hash &
+ * (slotCount - 1) until it's found or an empty slot is reached. Slot numbers
+ * serve as concept ids. The file is limited to 2 GB, the most a single
+ * mapping can hold.
+ */
+public class LabelIndexFile implements LabelIndex {
+
+    private static final byte[] MAGIC =
+            "LD4LLIX1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH =
+            MAGIC.length + 4 + 4 + HASH_LENGTH;
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int entryCount;
+
+    private LabelIndexFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_LENGTH) {
+            throw new IOException("Label index file is truncated");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        for (int i = 0; i < magic.length; i++) {
+            magic[i] = buffer.get(i);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a label index file");
+        }
+        slotCount = buffer.getInt(MAGIC.length);
+        entryCount = buffer.getInt(MAGIC.length + 4);
+        validate();
+    }
+
+    /**
+     * Check that the slots and every entry they point to lie within the 
+     * file, and that there is an empty slot to end each probe, so that a 
+     * truncated or corrupt file fails here rather than in a lookup.
+     */
+    private void validate() throws IOException {
+
+        long length = buffer.capacity();
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1
+                || entryCount < 0 || entryCount >= slotCount
+                || HEADER_LENGTH + (long) slotCount * 4 > length) {
+            throw new IOException("Label index file has a bad header");
+        }
+        long entriesStart = HEADER_LENGTH + (long) slotCount * 4;
+        int entries = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            long offset = getEntryOffset(slot);
+            if (offset == 0) {
+                continue;
+            }
+            entries++;
+            if (offset < entriesStart || offset + 12 > length) {
+                throw new IOException("Label index file is corrupt");
+            }
+            long labelLength = buffer.getInt((int) offset + 4);
+            long uriOffset = offset + 8 + labelLength;
+            if (labelLength < 0 || uriOffset + 4 > length) {
+                throw new IOException("Label index file is corrupt");
+            }
+            long uriLength = buffer.getInt((int) uriOffset);
+            if (uriLength < 0 || uriOffset + 4 + uriLength > length) {
+                throw new IOException("Label index file is corrupt");
+            }
+        }
+        if (entries != entryCount) {
+            throw new IOException("Label index file is corrupt");
+        }
+    }
+
+    /**
+     * Map an index file, checking its structure. Lookups only use absolute
+     * reads of the mapping, so the index can be shared between threads.
+     */
+    public static LabelIndexFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new LabelIndexFile(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the entries of a dictionary as an index file, replacing the
+     * file atomically.
+     */
+    public static void write(ConceptDictionary dictionary, byte[] inputHash,
+            File file) throws IOException {
+
+        int size = dictionary.size();
+        int slotCount = Integer.highestOneBit(Math.max(1, size) * 2 - 1) * 2;
+        int[] slots = new int[slotCount];
+
+        // Lay out the entries after the slots, and fill in the slots
+        byte[][] labels = new byte[size][];
+        byte[][] uris = new byte[size][];
+        int[] hashes = new int[size];
+        long offset = HEADER_LENGTH + (long) slotCount * 4;
+        for (int i = 0; i < size; i++) {
+            labels[i] = dictionary.getLabel(i).getBytes(StandardCharsets.UTF_8);
+            uris[i] = dictionary.getUri(i).getBytes(StandardCharsets.UTF_8);
+            hashes[i] = ConceptDictionary.hash(labels[i]);
+            int slot = hashes[i] & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Label index exceeds 2 GB");
+            }
+            slots[slot] = (int) offset;
+            offset += 12 + labels[i].length + uris[i].length;
+        }
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(atomicFile.getTempFile()),
+                            1 << 16));
+            try {
+                out.write(MAGIC);
+                out.writeInt(slotCount);
+                out.writeInt(size);
+                out.write(inputHash, 0, HASH_LENGTH);
+                for (int slot : slots) {
+                    out.writeInt(slot);
+                }
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(hashes[i]);
+                    out.writeInt(labels[i].length);
+                    out.write(labels[i]);
+                    out.writeInt(uris[i].length);
+                    out.write(uris[i]);
+                }
+            } finally {
+                out.close();
+            }
+            atomicFile.commit();
+        } finally {
+            atomicFile.abort();
+        }
+    }
+
+    /**
+     * The SHA-256 hash of the input the index was built from.
+     */
+    public byte[] getInputHash() {
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            hash[i] = buffer.get(MAGIC.length + 8 + i);
+        }
+        return hash;
+    }
+
+    @Override
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public String get(String label) {
+        int slot = getId(label);
+        return slot < 0 ? null : getUri(slot);
+    }
+
+    /**
+     * Return the number of the slot holding the label, or -1 if it isn't
+     * present.
+     */
+    @Override
+    public int getId(String label) {
+
+        int hash = ConceptDictionary.hash(label);
+        int slot = hash & (slotCount - 1);
+        while (true) {
+            int offset = getEntryOffset(slot);
+            if (offset == 0) {
+                return -1;
+            }
+            if (buffer.getInt(offset) == hash
+                    && labelEquals(offset + 4, label)) {
+                return slot;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    @Override
+    public String getUri(int slot) {
+        int offset = getEntryOffset(slot) + 4;
+        return readString(offset + 4 + buffer.getInt(offset));
+    }
+
+    @Override
+    public String getLabel(int slot) {
+        int offset = getEntryOffset(slot);
+        return offset == 0 ? null : readString(offset + 4);
+    }
+
+    @Override
+    public int getIdLimit() {
+        return slotCount;
+    }
+
+    private int getEntryOffset(int slot) {
+        return buffer.getInt(HEADER_LENGTH + slot * 4);
+    }
+
+    private boolean labelEquals(int offset, String label) {
+        int end = offset + 4 + buffer.getInt(offset);
+        offset += 4;
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c < 0x80) {
+                if (offset == end || buffer.get(offset++) != c) {
+                    return false;
+                }
+                continue;
+            }
+            int codePoint = ConceptDictionary.codePointAt(label, i);
+            if (codePoint > Character.MAX_VALUE) {
+                i++;
+            }
+            int utf8Length = ConceptDictionary.utf8Length(codePoint);
+            if (offset + utf8Length > end) {
+                return false;
+            }
+            for (int k = 0; k < utf8Length; k++) {
+                if (buffer.get(offset++) != ConceptDictionary.utf8Byte(
+                        codePoint, utf8Length, k)) {
+                    return false;
+                }
+            }
+        }
+        return offset == end;
+    }
+
+    private String readString(int offset) {
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Look up labels from the command line:
+     * LabelIndexFile <index file> <label> ...
+     */
+    public static void main(String[] args) throws IOException {
+        LabelIndexFile index = open(new File(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            System.out.println(args[i] + "\t" + index.get(args[i]));
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves labels that don't exactly match a concept label, in three
+ * steps, each tried only if the one before fails:
+ *
+ *   NORMALIZED  the label matches a concept label once both are put in
+ *               Unicode NFC, case-folded and have their whitespace
+ *               collapsed; failing that, once trailing parenthesized
+ *               qualifiers such as "(Gathering term; do not assign)" are
+ *               stripped from both as well
+ *   FUZZY       the stripped label is close to one stripped concept label
+ *               and no other: candidates sharing trigrams with it are
+ *               scored by edit distance, and the best is taken if it scores
+ *               at least minScore and beats the runner-up by MIN_MARGIN
+ *
+ * Where a key belongs to several concepts, e.g. "Thumb bibles" and "Thumb
+ * Bibles", or "Atlases (Geographic)" and "Atlases (Scientific)" once
+ * stripped, the concept whose label is closest to the label as written
+ * (case and qualifiers included) is taken if it beats the others by
+ * MIN_MARGIN. A label that can't be settled that way, or with two fuzzy
+ * candidates too close to call, is AMBIGUOUS and left unresolved.
+ *
+ * The outcome for each distinct label is cached, with the number of times
+ * it was asked for, so a label is only ever resolved once and the outcomes
+ * can be written as a report. Safe to call from several threads once
+ * built.
+ */
+public class LabelResolver {
+
+    /**
+     * How far labels are matched beyond exact equality.
+     */
+    public enum Matching { EXACT, NORMALIZED, FUZZY }
+
+    public enum Method { NORMALIZED, FUZZY, AMBIGUOUS, UNRESOLVED }
+
+    public static final double DEFAULT_MIN_SCORE = 0.85;
+
+    // A match must score this much better than the next candidate
+    private static final double MIN_MARGIN = 0.05;
+
+    // Candidates taken from the trigram index to be scored by edit distance
+    private static final int MAX_CANDIDATES = 8;
+
+    /**
+     * The outcome of resolving a label.
+     */
+    public static class Resolution {
+        public final Method method;
+        public final int id;
+        public final double score;
+        private final AtomicLong count = new AtomicLong();
+
+        Resolution(Method method, int id, double score) {
+            this.method = method;
+            this.id = id;
+            this.score = score;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    private final LabelIndex concepts;
+    private final boolean fuzzy;
+    private final double minScore;
+
+    // Concept ids by normalized key, and by normalized key with qualifiers
+    // stripped
+    private final Map<String, int[]> keys = new HashMap<String, int[]>();
+    private final Map<String, int[]> baseKeys = new HashMap<String, int[]>();
+
+    // Fuzzy matching: the distinct base keys, the concept ids of each, and
+    // the base keys containing each trigram
+    private String[] fuzzyKeys;
+    private int[][] fuzzyIds;
+    private int[] trigramCounts;
+    private Map<Long, int[]> postings;
+
+    private final ConcurrentMap<String, Resolution> resolutions =
+            new ConcurrentHashMap<String, Resolution>();
+
+    // Per-thread count of the trigrams each base key shares with a label
+    private final ThreadLocal<int[]> sharedCounts = new ThreadLocal<int[]>();
+
+    public LabelResolver(LabelIndex concepts, Matching matching) {
+        this(concepts, matching, DEFAULT_MIN_SCORE);
+    }
+
+    public LabelResolver(LabelIndex concepts, Matching matching,
+            double minScore) {
+
+        this.concepts = concepts;
+        this.fuzzy = matching == Matching.FUZZY;
+        this.minScore = minScore;
+
+        for (int id = 0; id < concepts.getIdLimit(); id++) {
+            String label = concepts.getLabel(id);
+            if (label != null) {
+                String key = normalize(label);
+                putKey(keys, key, id);
+                putKey(baseKeys, stripQualifiers(key), id);
+            }
+        }
+        if (fuzzy) {
+            buildTrigramIndex();
+        }
+    }
+
+    private static void putKey(Map<String, int[]> map, String key, int id) {
+        int[] ids = map.get(key);
+        if (ids == null) {
+            map.put(key, new int[] { id });
+        } else {
+            ids = Arrays.copyOf(ids, ids.length + 1);
+            ids[ids.length - 1] = id;
+            map.put(key, ids);
+        }
+    }
+
+    private void buildTrigramIndex() {
+
+        fuzzyKeys = baseKeys.keySet().toArray(new String[baseKeys.size()]);
+        // Key order decides nothing, but keeps the index reproducible
+        Arrays.sort(fuzzyKeys);
+        fuzzyIds = new int[fuzzyKeys.length][];
+        trigramCounts = new int[fuzzyKeys.length];
+
+        Map<Long, List<Integer>> lists = new HashMap<Long, List<Integer>>();
+        for (int k = 0; k < fuzzyKeys.length; k++) {
+            fuzzyIds[k] = baseKeys.get(fuzzyKeys[k]);
+            long[] trigrams = trigrams(fuzzyKeys[k]);
+            trigramCounts[k] = trigrams.length;
+            for (long trigram : trigrams) {
+                List<Integer> list = lists.get(trigram);
+                if (list == null) {
+                    list = new ArrayList<Integer>(4);
+                    lists.put(trigram, list);
+                }
+                list.add(k);
+            }
+        }
+        postings = new HashMap<Long, int[]>(lists.size() * 2);
+        for (Map.Entry<Long, List<Integer>> entry : lists.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] keyNums = new int[list.size()];
+            for (int i = 0; i < keyNums.length; i++) {
+                keyNums[i] = list.get(i);
+            }
+            postings.put(entry.getKey(), keyNums);
+        }
+    }
+
+    /**
+     * Return the id of the concept a label that has no exact match
+     * resolves to, or -1.
+     */
+    public int resolve(String label) {
+
+        Resolution resolution = resolutions.get(label);
+        if (resolution == null) {
+            resolution = computeResolution(label);
+            Resolution previous =
+                    resolutions.putIfAbsent(label, resolution);
+            if (previous != null) {
+                resolution = previous;
+            }
+        }
+        resolution.count.incrementAndGet();
+        return resolution.method == Method.NORMALIZED
+                || resolution.method == Method.FUZZY ? resolution.id : -1;
+    }
+
+    private Resolution computeResolution(String label) {
+
+        String key = normalize(label);
+        int[] ids = keys.get(key);
+        String baseKey = stripQualifiers(key);
+        if (ids == null) {
+            ids = baseKeys.get(baseKey);
+        }
+        if (ids != null) {
+            return choose(Method.NORMALIZED, ids, label, 1);
+        }
+        if (fuzzy && !baseKey.isEmpty()) {
+            return matchFuzzy(label, baseKey);
+        }
+        return new Resolution(Method.UNRESOLVED, -1, 0);
+    }
+
+    /**
+     * Resolve to the single concept, or to the one of several concepts 
+     * whose label is clearly closest to the label as written.
+     */
+    private Resolution choose(Method method, int[] ids, String label, 
+            double score) {
+
+        if (ids.length == 1) {
+            return new Resolution(method, ids[0], score);
+        }
+        String written = collapse(label);
+        int best = -1;
+        double bestSimilarity = -1;
+        double secondSimilarity = -1;
+        for (int id : ids) {
+            double similarity = 
+                    similarity(written, collapse(concepts.getLabel(id)));
+            if (similarity > bestSimilarity) {
+                secondSimilarity = bestSimilarity;
+                bestSimilarity = similarity;
+                best = id;
+            } else if (similarity > secondSimilarity) {
+                secondSimilarity = similarity;
+            }
+        }
+        if (bestSimilarity - secondSimilarity < MIN_MARGIN) {
+            return new Resolution(Method.AMBIGUOUS, -1, score);
+        }
+        return new Resolution(method, best, score);
+    }
+
+    /**
+     * Find the base keys sharing the most trigrams with the specified one
+     * relative to their size (Dice coefficient), score the best few by
+     * edit distance, and take the best of those if it's good enough and
+     * clearly better than the rest.
+     */
+    private Resolution matchFuzzy(String label, String baseKey) {
+
+        int[] shared = sharedCounts.get();
+        if (shared == null) {
+            shared = new int[fuzzyKeys.length];
+            sharedCounts.set(shared);
+        }
+        long[] trigrams = trigrams(baseKey);
+        List<Integer> touched = new ArrayList<Integer>();
+        for (long trigram : trigrams) {
+            int[] keyNums = postings.get(trigram);
+            if (keyNums == null) {
+                continue;
+            }
+            for (int k : keyNums) {
+                if (shared[k]++ == 0) {
+                    touched.add(k);
+                }
+            }
+        }
+
+        // Top candidates by Dice coefficient
+        int[] candidates = new int[MAX_CANDIDATES];
+        double[] dice = new double[MAX_CANDIDATES];
+        int candidateCount = 0;
+        for (int k : touched) {
+            double d = 2.0 * shared[k] / (trigrams.length + trigramCounts[k]);
+            shared[k] = 0;
+            if (candidateCount < MAX_CANDIDATES) {
+                candidateCount++;
+            } else if (d <= dice[candidateCount - 1]) {
+                continue;
+            }
+            int i = candidateCount - 1;
+            while (i > 0 && dice[i - 1] < d) {
+                candidates[i] = candidates[i - 1];
+                dice[i] = dice[i - 1];
+                i--;
+            }
+            candidates[i] = k;
+            dice[i] = d;
+        }
+
+        int best = -1;
+        double bestScore = 0;
+        double secondScore = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            double score = similarity(baseKey, fuzzyKeys[candidates[i]]);
+            if (score > bestScore) {
+                secondScore = bestScore;
+                bestScore = score;
+                best = candidates[i];
+            } else if (score > secondScore) {
+                secondScore = score;
+            }
+        }
+        if (best < 0 || bestScore < minScore) {
+            return new Resolution(Method.UNRESOLVED, -1, bestScore);
+        }
+        if (bestScore - secondScore < MIN_MARGIN) {
+            return new Resolution(Method.AMBIGUOUS, -1, bestScore);
+        }
+        return choose(Method.FUZZY, fuzzyIds[best], label, bestScore);
+    }
+
+    /**
+     * Put a label in Unicode NFC, fold its case, collapse runs of
+     * whitespace to a single space and trim it.
+     */
+    static String normalize(String label) {
+        return collapse(label).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Put a label in Unicode NFC, collapse runs of whitespace to a single
+     * space and trim it.
+     */
+    private static String collapse(String label) {
+
+        String nfc = Normalizer.normalize(label, Normalizer.Form.NFC);
+        StringBuilder key = new StringBuilder(nfc.length());
+        boolean space = false;
+        for (int i = 0; i < nfc.length(); i++) {
+            char c = nfc.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = key.length() > 0;
+                continue;
+            }
+            if (space) {
+                key.append(' ');
+                space = false;
+            }
+            key.append(c);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Remove trailing parenthesized qualifiers from a normalized key. A key
+     * that is nothing but a qualifier is returned unchanged.
+     */
+    static String stripQualifiers(String key) {
+
+        String base = key;
+        while (base.endsWith(")")) {
+            int open = base.lastIndexOf('(');
+            if (open <= 0) {
+                break;
+            }
+            base = base.substring(0, open).trim();
+        }
+        return base.isEmpty() ? key : base;
+    }
+
+    /**
+     * Return the distinct trigrams of a key padded with spaces, each packed
+     * into a long.
+     */
+    private static long[] trigrams(String key) {
+
+        String padded = "  " + key + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32)
+                    | ((long) padded.charAt(i + 1) << 16)
+                    | padded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int count = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[count++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, count);
+    }
+
+    /**
+     * Return 1 minus the edit distance between two strings divided by the
+     * length of the longer. The distance counts insertions, deletions,
+     * substitutions and transpositions of adjacent characters (optimal
+     * string alignment), so a typical typo costs 1.
+     */
+    static double similarity(String a, String b) {
+
+        int maxLength = Math.max(a.length(), b.length());
+        if (maxLength == 0) {
+            return 1;
+        }
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = c == b.charAt(j - 1) ? 0 : 1;
+                int distance = Math.min(Math.min(current[j - 1] + 1,
+                        previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && c == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    distance = Math.min(distance, 
+                            beforePrevious[j - 2] + 1);
+                }
+                current[j] = distance;
+            }
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        return 1 - (double) previous[b.length()] / maxLength;
+    }
+
+    /**
+     * Return the number of distinct labels with the specified outcome, and
+     * the number of times they were asked for.
+     */
+    public long[] count(Method method) {
+        long[] count = new long[2];
+        for (Resolution resolution : resolutions.values()) {
+            if (resolution.method == method) {
+                count[0]++;
+                count[1] += resolution.getCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write how each label without an exact match was resolved, as
+     * tab-separated values: the label, the number of times it occurred,
+     * the method, the score, and the label and URI of the concept it
+     * resolved to, if any. Sorted by method, then most frequent first.
+     */
+    public void writeReport(File file) throws IOException {
+
+        List<Map.Entry<String, Resolution>> entries =
+                new ArrayList<Map.Entry<String, Resolution>>(
+                        resolutions.entrySet());
+        Collections.sort(entries,
+                new Comparator<Map.Entry<String, Resolution>>() {
+            @Override
+            public int compare(Map.Entry<String, Resolution> a,
+                    Map.Entry<String, Resolution> b) {
+                int c = a.getValue().method.compareTo(b.getValue().method);
+                if (c == 0) {
+                    c = Long.compare(b.getValue().getCount(),
+                            a.getValue().getCount());
+                }
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        try {
+            Writer out = Files.newBufferedWriter(
+                    atomicFile.getTempFile().toPath(),
+                    StandardCharsets.UTF_8);
+            try {
+                out.write("label\tcount\tmethod\tscore\tconceptLabel"
+                        + "\tconcept\n");
+                for (Map.Entry<String, Resolution> entry : entries) {
+                    Resolution resolution = entry.getValue();
+                    out.write(escape(entry.getKey()));
+                    out.write("\t" + resolution.getCount());
+                    out.write("\t" + resolution.method.name().toLowerCase());
+                    out.write(String.format(Locale.ROOT, "\t%.3f",
+                            resolution.score));
+                    if (resolution.id >= 0) {
+                        out.write("\t" 
+                                + escape(concepts.getLabel(resolution.id))
+                                + "\t" + concepts.getUri(resolution.id));
+                    } else {
+                        out.write("\t\t");
+                    }
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+            atomicFile.commit();
+        } finally {
+            atomicFile.abort();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t")
+                .replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
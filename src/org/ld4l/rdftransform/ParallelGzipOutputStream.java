@@ -0,0 +1,182 @@
+package org.ld4l.rdftransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses on several threads, in the manner of
+ * bgzip: the data is cut into blocks of BLOCK_SIZE bytes, each block is
+ * compressed as a separate gzip member on a thread pool, and the members
+ * are written in order. A sequence of gzip members is itself a valid gzip
+ * file (RFC 1952), read as one stream by gunzip, GZIPInputStream and Jena.
+ * Restarting the compressor every block costs well under 1% in size.
+ *
+ * At most twice as many blocks as threads are in flight, so a slow
+ * underlying stream holds back the writer rather than filling the heap.
+ *
+ * Unless given an executor, streams share one pool of DEFAULT_THREADS
+ * daemon threads, so a batch writing many compressed files at once still
+ * only runs one compression thread per processor.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    public static final int DEFAULT_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sharedExecutor;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending =
+            new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private boolean wroteMember;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, getSharedExecutor(), DEFAULT_THREADS);
+    }
+
+    /**
+     * Compress on the specified executor, which is left running on close,
+     * keeping at most twice threads blocks in flight.
+     */
+    public ParallelGzipOutputStream(OutputStream out, 
+            ExecutorService executor, int threads) {
+        this.out = out;
+        this.executor = executor;
+        maxPending = threads * 2;
+    }
+
+    private static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "gzip");
+                            // Don't keep the JVM alive
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sharedExecutor;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            if (blockLength == block.length) {
+                submitBlock();
+            }
+            int chunk = Math.min(length, block.length - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, chunk);
+            blockLength += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Compress and write everything written so far. Ends the current
+     * member early, so frequent flushes cost compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeMember(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // An empty file isn't valid gzip, so write at least one member
+            if (blockLength > 0 || (!wroteMember && pending.isEmpty())) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeMember(pending.removeFirst());
+            }
+        } finally {
+            // Left over if writing failed; the executor may be shared
+            for (Future<byte[]> member : pending) {
+                member.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+
+        final byte[] data = block;
+        final int length = blockLength;
+        pending.addLast(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return compress(data, length);
+            }
+        }));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() > maxPending) {
+            writeMember(pending.removeFirst());
+        }
+    }
+
+    private void writeMember(Future<byte[]> member) throws IOException {
+        try {
+            out.write(member.get());
+            wroteMember = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes, 1 << 16);
+        gzip.write(data, 0, length);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,238 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.ReaderRIOT;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.system.ParserProfile;
+import org.apache.jena.riot.system.RiotLib;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads an N-Triples or N-Quads file on several threads. The file is
+ * memory-mapped and split into chunks that start and end on line breaks;
+ * each chunk is parsed by its own RIOT parser, and the triples are added to
+ * the target graph in batches. For N-Quads, the graph name is dropped.
+ *
+ * All chunk parsers share a blank node allocation seed, so the same blank
+ * node label in two chunks yields the same blank node.
+ */
+public class ParallelNTriplesReader {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(ParallelNTriplesReader.class);
+
+    // Number of triples a parser collects before adding them to the graph
+    private static final int BATCH_SIZE = 10000;
+
+    // A single mapping can't exceed 2 GB
+    private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    private final int threads;
+
+    public ParallelNTriplesReader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Return true if the file is a line-based format this class can split.
+     */
+    public static boolean canRead(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".nt") || name.endsWith(".nq");
+    }
+
+    public void read(File file, final Graph graph) throws IOException {
+
+        final boolean quads = file.getName().toLowerCase().endsWith(".nq");
+        final UUID seed = UUID.randomUUID();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Long> boundaries = findChunkBoundaries(channel);
+            LOGGER.debug("Reading " + file + " in "
+                    + (boundaries.size() - 1) + " chunks");
+
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < boundaries.size() - 1; i++) {
+                long start = boundaries.get(i);
+                long end = boundaries.get(i + 1);
+                final MappedByteBuffer chunk = channel.map(
+                        FileChannel.MapMode.READ_ONLY, start, end - start);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        parseChunk(chunk, quads, seed, graph);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error parsing " + file, e.getCause());
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+        }
+    }
+
+    /**
+     * Return the offsets at which chunks start, followed by the file size.
+     * Each offset except the first follows a newline.
+     */
+    private List<Long> findChunkBoundaries(FileChannel channel)
+            throws IOException {
+
+        long size = channel.size();
+        long chunkCount = Math.max(threads,
+                (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        long chunkSize = Math.max(1, size / chunkCount);
+
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        ByteBuffer scan = ByteBuffer.allocate(8192);
+        long position = chunkSize;
+        while (position < size) {
+            position = nextLineStart(channel, position, scan);
+            if (position >= size) {
+                break;
+            }
+            boundaries.add(position);
+            position += chunkSize;
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position,
+            ByteBuffer scan) throws IOException {
+
+        while (true) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    private static void parseChunk(ByteBuffer chunk, boolean quads,
+            UUID seed, Graph graph) {
+
+        Lang lang = quads ? Lang.NQUADS : Lang.NTRIPLES;
+        ParserProfile profile = RiotLib.profile(lang, null);
+        profile.setLabelToNode(LabelToNode.createScopeByDocumentHash(seed));
+        ReaderRIOT reader = RDFDataMgr.createReader(lang);
+        reader.setParserProfile(profile);
+
+        BatchingSink sink = new BatchingSink(graph);
+        sink.start();
+        reader.read(new ByteBufferInputStream(chunk), null, null, sink, null);
+        sink.finish();
+    }
+
+    /**
+     * Collects parsed triples and adds them to the shared graph in batches,
+     * holding the graph's lock only while adding a batch.
+     */
+    private static class BatchingSink extends StreamRDFBase {
+
+        private final Graph graph;
+        private List<Triple> batch = new ArrayList<Triple>(BATCH_SIZE);
+
+        BatchingSink(Graph graph) {
+            this.graph = graph;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            batch.add(triple);
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+
+        @Override
+        public void finish() {
+            flush();
+        }
+
+        private void flush() {
+            synchronized (graph) {
+                GraphUtil.add(graph, batch);
+            }
+            batch = new ArrayList<Triple>(BATCH_SIZE);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,13 +1,47 @@
 package org.ld4l.rdftransform;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.jena.atlas.lib.IRILib;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.tdb.TDBLoader;
+import org.apache.jena.tdb.base.file.Location;
+import org.apache.jena.tdb.setup.DatasetBuilderStd;
+import org.apache.jena.tdb.store.DatasetGraphTDB;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.jena.vocabulary.SKOS;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -17,34 +51,423 @@ public abstract class RdfDataTransformer {
     private static final Logger LOGGER = 
             LogManager.getLogger(RdfDataTransformer.class);  
     
+    // Number of changes applied to a TDB-backed model per write transaction
+    private static final int TDB_COMMIT_INTERVAL = 100000;
+    
+    private static final int GZIP_INPUT_BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Models of at least this many triples are written as Turtle blocks 
+     * rather than pretty Turtle.
+     */
+    public static final long DEFAULT_TURTLE_STREAMING_THRESHOLD = 100000;
+    
+    private final File infile;
     private final File outfile;
     private final RDFFormat format;
     
+    // In streaming mode the input is never loaded into memory: transformers 
+    // parse the input file into a StreamRDF sink and write their output 
+    // directly to a StreamRDF writer.
+    protected final boolean streaming;
+    
     protected Model model;
-    protected Model assertions;
-    protected Model retractions;
+    protected ChangeLog assertions;
+    protected ChangeLog retractions;
+    
+    // Not final: a TransformerChain shares its metrics with its members
+    protected TransformMetrics metrics = new TransformMetrics();
+    
+    // Number of threads used by phases that can run in parallel; 1 means 
+    // sequential.
+    protected int parallelism = 1;
+    
+    private int outputBufferSize = ChannelOutputStream.DEFAULT_BUFFER_SIZE;
+    private AtomicFile atomicOutfile;
+    private ChannelOutputStream outputChannel;
+    
+    // Detected from the input's first bytes on first use
+    private Compression inputCompression;
+    private long writeStartNanos;
+    
+    // Leave sharded N-Triples output in part files rather than concatenating
+    private boolean splitOutput;
+    
+    // If set, the model is the default graph of a TDB dataset in this 
+    // directory rather than an in-memory graph.
+    private File tdbDirectory;
+    private Dataset dataset;
+    
+    // Persist the label index, for transformers that build one
+    protected boolean labelIndex;
+    
+    // How labels are matched to concepts, for transformers that resolve 
+    // them
+    protected LabelResolver.Matching labelMatching = 
+            LabelResolver.Matching.EXACT;
+    
+    // Mints the URIs of resources the transform creates. Not final: a 
+    // BatchTransformer or TransformerChain shares one between transformers
+    protected UriMinter uriMinter = new UriMinter();
+    
+    // Patch the previous output instead of rewriting it, for transformers
+    // that support it
+    protected boolean incremental;
+    private byte[] inputHash;
+    
+    // If set, the changes made to the model are also written as a change 
+    // set, and with changesOnly instead of the transformed model
+    private ChangeSetWriter.Format changeFormat;
+    private boolean compressChanges;
+    private boolean changesOnly;
+    private ChangeSetWriter changeWriter;
+    
+    // The run's report will be written
+    private boolean report;
+    
+    // Streaming mode: run the rewriting pass as a pipeline of parser,
+    // parallelism workers and writer, in batches of pipelineBatchSize
+    protected boolean pipelined;
+    protected int pipelineBatchSize = TriplePipeline.DEFAULT_BATCH_SIZE;
+    
+    // Declared at the top of Turtle output, ahead of any the input declares,
+    // so that the streaming writer can abbreviate from the first triple
+    protected final Map<String, String> outputPrefixes = 
+            new LinkedHashMap<String, String>();
+    private long turtleStreamingThreshold = 
+            DEFAULT_TURTLE_STREAMING_THRESHOLD;
     
     public RdfDataTransformer(File infile, File outfile, RDFFormat format) {
+        this(infile, outfile, format, false);
+    }
+    
+    public RdfDataTransformer(File infile, File outfile, RDFFormat format,
+            boolean streaming) {
+        this.infile = infile;
         this.outfile = outfile;
         this.format = format;
+        this.streaming = streaming;
+        
+        outputPrefixes.put("rdf", RDF.getURI());
+        outputPrefixes.put("rdfs", RDFS.getURI());
+        outputPrefixes.put("skos", SKOS.getURI());
+        
+        if (streaming) {
+            return;
+        }
+        
+        assertions = new ChangeLog();
+        retractions = new ChangeLog();
+    }
+    
+    /**
+     * Read the input file into the model. Called at the start of transform()
+     * rather than in the constructor, so that settings such as parallelism 
+     * apply to reading too. N-Triples and N-Quads input is parsed on 
+     * multiple threads when parallelism is greater than 1.
+     */
+    protected void readModel() {
         
+        metrics.startPhase("read");
         model = ModelFactory.createDefaultModel();
         try {
             String canonicalPath = infile.getCanonicalPath();
             LOGGER.debug("Reading model from file " + canonicalPath);
-            model.read(canonicalPath);            
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+            Compression compression = getInputCompression();
+            if (tdbDirectory != null) {
+                loadTdbDataset(canonicalPath);
+            } else if (compression != Compression.NONE) {
+                parseCompressedInput(StreamRDFLib.graph(model.getGraph()));
+            } else if (parallelism > 1 
+                    && ParallelNTriplesReader.canRead(infile)) {
+                new ParallelNTriplesReader(parallelism).read(
+                        infile, model.getGraph());
+            } else {
+                model.read(canonicalPath);
+            }
+        } catch (IOException e) {
+            throw new TransformException("Can't read " + infile, e);
         }
+        beginTransaction(ReadWrite.READ);
+        metrics.setCounter(TransformMetrics.TRIPLES_READ, model.size());
+        endTransaction();
+        metrics.endPhase();
+    }
+    
+    /**
+     * Bulk load the input file into a new TDB dataset, and use its default
+     * graph as the model. The bulk loader writes to the store directly, so
+     * it runs on a plain dataset that is closed before the transactional 
+     * one is opened: loading under the transactional one would leave its
+     * record of the node table behind the file. Afterwards, the model is 
+     * only used in transactions.
+     */
+    private void loadTdbDataset(String canonicalPath) throws IOException {
         
-        assertions = ModelFactory.createDefaultModel();
-        retractions = ModelFactory.createDefaultModel();
+        LOGGER.debug("Loading " + canonicalPath + " into TDB dataset in " 
+                + tdbDirectory);
+        Location location = Location.create(tdbDirectory.getCanonicalPath());
+        DatasetGraphTDB base = DatasetBuilderStd.create(location);
+        try {
+            TDBLoader.load(base, canonicalPath, false);
+            base.sync();
+        } finally {
+            base.close();
+        }
+        dataset = TDBFactory.createDataset(location);
+        model = dataset.getDefaultModel();
     }
     
 
 
-    public abstract void transform();
+    /**
+     * Read the input, transform it and write the result. In streaming mode,
+     * hands the whole job to transformStream().
+     */
+    public void transform() {
+        
+        if (streaming) {
+            transformStream();
+            return;
+        }
+        
+        try {
+            readModel();
+            
+            if (needsDistinctAssertions()) {
+                assertions = new ChangeLog(true);
+            }
+            beginTransaction(ReadWrite.READ);
+            try {
+                transformModel();
+            } finally {
+                endTransaction();
+            }
+            
+            writeNewModel();
+            closeChangeSet();
+        } finally {
+            abortChangeSet();
+            // Release rather than close, so the location can be reused
+            if (dataset != null) {
+                TDBFactory.release(dataset);
+            }
+        }
+    }
+    
+    /**
+     * Record the changes to make to the model in assertions and retractions.
+     */
+    protected abstract void transformModel();
+    
+    /**
+     * Transform the input file to the output file without loading it into a
+     * Model. Transformers that support streaming mode override this.
+     */
+    protected void transformStream() {
+        throw new UnsupportedOperationException(getClass().getSimpleName()
+                + " doesn't support streaming mode");
+    }
+    
+    /**
+     * Run parallelizable phases on the specified number of threads. In 
+     * streaming mode, only has effect if pipelined, as the number of 
+     * workers.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * In streaming mode, parse, rewrite and write at the same time on 
+     * separate threads, for transformers that support it. See TriplePipeline.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+    
+    /**
+     * Number of triples handed to a pipeline worker at a time.
+     */
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+    
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+    
+    /**
+     * With N-Triples output and parallelism greater than 1, leave the output
+     * in one part file per thread, named <output>.part-NNNNN, instead of 
+     * concatenating the parts into the output file.
+     */
+    public void setSplitOutput(boolean splitOutput) {
+        this.splitOutput = splitOutput;
+    }
+    
+    /**
+     * Transformers that build a label to URI index write it to 
+     * getLabelIndexFile(), and reuse it instead of rebuilding it on later 
+     * runs over the same input.
+     */
+    public void setLabelIndex(boolean labelIndex) {
+        this.labelIndex = labelIndex;
+    }
+    
+    protected File getLabelIndexFile() {
+        return new File(outfile.getPath() + ".labels");
+    }
+    
+    /**
+     * Transformers that resolve labels to concepts try labels that don't 
+     * match a concept label exactly again with the specified matching (see
+     * LabelResolver), and report how each was resolved in 
+     * getResolutionReportFile().
+     */
+    public void setLabelMatching(LabelResolver.Matching labelMatching) {
+        this.labelMatching = labelMatching;
+    }
+    
+    protected File getResolutionReportFile() {
+        return new File(outfile.getPath() + ".resolution.tsv");
+    }
+    
+    /**
+     * Mint URIs with the specified minter, typically one whose registry 
+     * persists across runs, rather than with a minter of this transformer's
+     * own. See UriMinter.
+     */
+    public void setUriMinter(UriMinter uriMinter) {
+        this.uriMinter = uriMinter;
+    }
+    
+    /**
+     * Transformers that support incremental mode keep a manifest of each 
+     * run in getManifestFile(), and on the next run recompute only what 
+     * changed in the input and patch the previous output. Needs N-Triples
+     * output and exact label matching.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    /**
+     * Write the changes made to the model as a change set next to the 
+     * output file; see ChangeSetWriter. Not available in streaming mode.
+     */
+    public void setChangeFormat(ChangeSetWriter.Format changeFormat) {
+        this.changeFormat = changeFormat;
+    }
+    
+    /**
+     * Gzip the change set files.
+     */
+    public void setCompressChanges(boolean compressChanges) {
+        this.compressChanges = compressChanges;
+    }
+    
+    /**
+     * Write only the change set, not the transformed model. The changes 
+     * are then never applied to the model, which saves the apply and write
+     * phases.
+     */
+    public void setChangesOnly(boolean changesOnly) {
+        this.changesOnly = changesOnly;
+    }
+    
+    /**
+     * The run's report will be written, so its counts must be of distinct
+     * triples; see needsDistinctAssertions().
+     */
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+    
+    /**
+     * Whether the same assertion logged twice, e.g. for two literals that 
+     * resolve to the same concept, must be logged once. Applying it twice
+     * leaves the model the same, but a change set would list it twice and
+     * the report count it twice.
+     */
+    protected boolean needsDistinctAssertions() {
+        return changeFormat != null || report;
+    }
+    
+    /**
+     * Pretty Turtle output is written by analysing the whole model for 
+     * nesting and lists before writing anything, which takes minutes and a 
+     * second model-sized working set for a large vocabulary. Models of at 
+     * least this many triples are instead streamed as Turtle blocks. 0 
+     * means always stream.
+     */
+    public void setTurtleStreamingThreshold(long turtleStreamingThreshold) {
+        this.turtleStreamingThreshold = turtleStreamingThreshold;
+    }
+    
+    protected File getManifestFile() {
+        return new File(outfile.getPath() + ".manifest");
+    }
+    
+    protected File getOutputFile() {
+        return outfile;
+    }
+    
+    /**
+     * Return the SHA-256 hash of the input file's contents, computed on 
+     * first use.
+     */
+    protected byte[] getInputHash() {
+        
+        if (inputHash != null) {
+            return inputHash;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            FileChannel channel = FileChannel.open(
+                    infile.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                channel.close();
+            }
+            inputHash = digest.digest();
+        } catch (IOException e) {
+            throw new TransformException("Can't read " + infile, e);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        return inputHash;
+    }
+    
+    /**
+     * Keep the model in a TDB dataset in the specified directory, which
+     * should be empty, instead of in memory. The input is bulk loaded, 
+     * changes are applied in write transactions of TDB_COMMIT_INTERVAL 
+     * triples each, and the output is streamed from the dataset where the
+     * format allows. TDB transactions belong to a thread, so the model is
+     * transformed and written on a single thread whatever the parallelism.
+     */
+    public void setTdbDirectory(File tdbDirectory) {
+        this.tdbDirectory = tdbDirectory;
+    }
+    
+    public TransformMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Write the run metrics as JSON to a file next to the output file.
+     */
+    public void writeReport() {
+        metrics.writeReport(new File(outfile.getPath() + ".report.json"));
+    }
     
 //    protected Model readModelFromFile(File file) {
 //        return readModelFromFile(file.toString());
@@ -59,27 +482,485 @@ public abstract class RdfDataTransformer {
 //    }
     
     protected void writeNewModel() {
+        if (changesOnly) {
+            writeChanges();
+            return;
+        }
         applyModelChanges();
         writeModelToFile();       
     }
     
-    private void applyModelChanges() {
-        model.remove(retractions);
-        model.add(assertions);
+    protected void applyModelChanges() {
+        writeChanges();
+        metrics.startPhase("apply");
+        metrics.increment(
+                TransformMetrics.TRIPLES_RETRACTED, retractions.size());
+        metrics.increment(
+                TransformMetrics.TRIPLES_ASSERTED, assertions.size());
+        if (dataset != null) {
+            applyModelChangesToTdb();
+        } else {
+            retractions.removeFrom(model);
+            assertions.addTo(model);
+        }
+        metrics.endPhase();
+    }
+    
+    /**
+     * Apply the changes in write transactions, committing every 
+     * TDB_COMMIT_INTERVAL triples so that the transaction journal stays 
+     * small. If called within the read transaction of transformModel() (as 
+     * TransformerChain does), that transaction is ended first and resumed 
+     * afterwards.
+     */
+    private void applyModelChangesToTdb() {
+        
+        boolean reading = dataset.isInTransaction();
+        if (reading) {
+            dataset.end();
+        }
+        for (int from = 0; from < retractions.size(); 
+                from += TDB_COMMIT_INTERVAL) {
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                retractions.removeFrom(model, from, Math.min(
+                        retractions.size(), from + TDB_COMMIT_INTERVAL));
+                dataset.commit();
+            } finally {
+                dataset.end();
+            }
+        }
+        for (int from = 0; from < assertions.size(); 
+                from += TDB_COMMIT_INTERVAL) {
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                assertions.addTo(model, from, Math.min(
+                        assertions.size(), from + TDB_COMMIT_INTERVAL));
+                dataset.commit();
+            } finally {
+                dataset.end();
+            }
+        }
+        if (reading) {
+            dataset.begin(ReadWrite.READ);
+        }
+    }
+
+    /**
+     * Append the pending changes to the change set, if one was requested.
+     * Called for each set of changes applied, so a TransformerChain writes
+     * one transaction per member.
+     */
+    private void writeChanges() {
+        
+        if (changeFormat == null) {
+            return;
+        }
+        metrics.startPhase("writeChanges");
+        try {
+            if (changeWriter == null) {
+                changeWriter = new ChangeSetWriter(outfile, changeFormat, 
+                        compressChanges, outputBufferSize);
+            }
+            changeWriter.write(retractions, assertions);
+        } catch (IOException e) {
+            throw new TransformException("Can't write change set for " 
+                    + outfile, e);
+        }
+        metrics.endPhase();
+    }
+    
+    private void closeChangeSet() {
+        
+        if (changeWriter == null) {
+            return;
+        }
+        try {
+            changeWriter.close();
+        } catch (IOException e) {
+            throw new TransformException("Can't write change set for " 
+                    + outfile, e);
+        }
+        metrics.setCounter("changeSetTriplesDeleted", 
+                changeWriter.getTriplesDeleted());
+        metrics.setCounter("changeSetTriplesAdded", 
+                changeWriter.getTriplesAdded());
+        changeWriter = null;
+    }
+
+    /**
+     * Delete the change set files if the transform failed before 
+     * closeChangeSet() moved them into place.
+     */
+    private void abortChangeSet() {
+        
+        if (changeWriter != null) {
+            changeWriter.abort();
+            changeWriter = null;
+        }
     }
 
     private void writeModelToFile() {
         
-        FileOutputStream outStream;
+        metrics.startPhase("write");
+        beginTransaction(ReadWrite.READ);
+        try {
+            if (dataset != null && getStreamingFormat(format) != null) {
+                writeModelAsStream();
+            } else if (parallelism > 1 
+                    && format.getLang().equals(Lang.NTRIPLES)) {
+                writeModelToShards();
+            } else if (isPrettyTurtle(format)) {
+                writeModelAsTurtle();
+            } else {
+                OutputStream outStream = openOutputFile();
+                try {
+                    RDFDataMgr.write(outStream, model, format);
+                    closeOutputFile(outStream);
+                } finally {
+                    abortOutputFile(outStream);
+                }
+            }
+            metrics.setCounter(
+                    TransformMetrics.TRIPLES_WRITTEN, model.size());
+        } finally {
+            endTransaction();
+        }
+        metrics.endPhase();
+    }
+    
+    /**
+     * Stream the model's triples to the output writer, so that a large 
+     * TDB-backed model is never held in memory by the serializer. 
+     */
+    private void writeModelAsStream() {
+        
+        OutputStream outStream = openOutputFile();
+        try {
+            StreamRDF writer = getOutputWriter(outStream);
+            writer.start();
+            StreamOps.graphToStream(model.getGraph(), writer);
+            writer.finish();
+            closeOutputFile(outStream);
+        } finally {
+            abortOutputFile(outStream);
+        }
+    }
+    
+    /**
+     * Write pretty Turtle for a small model and Turtle blocks for a large 
+     * one. Either way the output prefixes are declared as well as the 
+     * model's own.
+     */
+    private void writeModelAsTurtle() {
+        
+        long size = model.size();
+        if (size >= turtleStreamingThreshold) {
+            LOGGER.debug("Streaming " + size + " triples as Turtle blocks");
+            writeModelAsStream();
+            return;
+        }
+        PrefixMap prefixes = PrefixMapFactory.create(outputPrefixes);
+        prefixes.putAll(model);
+        OutputStream outStream = openOutputFile();
+        try {
+            RDFDataMgr.createGraphWriter(format).write(
+                    outStream, model.getGraph(), prefixes, null, null);
+            closeOutputFile(outStream);
+        } finally {
+            abortOutputFile(outStream);
+        }
+    }
+    
+    /**
+     * Whether the format is Turtle that can't be written as a stream, i.e. 
+     * pretty Turtle.
+     */
+    private static boolean isPrettyTurtle(RDFFormat format) {
+        return format.getLang().equals(Lang.TURTLE) 
+                && !StreamRDFWriter.registered(format);
+    }
+    
+    /**
+     * Begin a transaction if the model is backed by TDB.
+     */
+    private void beginTransaction(ReadWrite mode) {
+        if (dataset != null) {
+            dataset.begin(mode);
+        }
+    }
+    
+    /**
+     * End the current read transaction if the model is backed by TDB.
+     */
+    private void endTransaction() {
+        if (dataset != null) {
+            dataset.end();
+        }
+    }
+    
+    /**
+     * Write N-Triples output on parallelism threads, each writing a shard of
+     * the subjects to a part file. Unless splitOutput is set, the parts are
+     * then concatenated into the output file.
+     */
+    private void writeModelToShards() {
+        
+        ShardedNTriplesWriter writer = new ShardedNTriplesWriter(
+                parallelism, outputBufferSize, isOutputCompressed());
+        try {
+            if (splitOutput) {
+                List<File> parts = writer.write(model.getGraph(), outfile);
+                LOGGER.debug("Wrote " + parts.size() + " part files for " 
+                        + outfile);
+                return;
+            }
+            // The parts are gzipped already if need be
+            ChannelOutputStream outStream = openOutputChannel();
+            List<File> parts = null;
+            try {
+                parts = writer.write(model.getGraph(), 
+                        atomicOutfile.getTempFile());
+                ShardedNTriplesWriter.concatenate(parts, outStream);
+                closeOutputFile(outStream);
+            } finally {
+                if (atomicOutfile != null && parts != null) {
+                    ShardedNTriplesWriter.delete(parts);
+                }
+                abortOutputFile(outStream);
+            }
+        } catch (IOException e) {
+            throw new TransformException("Can't write " + outfile, e);
+        }
+    }
+    
+    /**
+     * Return the streaming equivalent of the requested output format, or null
+     * if the format can't be written as a stream. Pretty Turtle is replaced by
+     * Turtle blocks; RDF/XML has no streaming writer.
+     */
+    public static RDFFormat getStreamingFormat(RDFFormat format) {
+        if (StreamRDFWriter.registered(format)) {
+            return format;
+        }
+        if (format.getLang().equals(Lang.TURTLE)) {
+            return RDFFormat.TURTLE_BLOCKS;
+        }
+        return null;
+    }
+
+    /**
+     * Streaming mode: parse the input file, sending each triple to the
+     * specified sink. Can be called once per pass over the input.
+     */
+    protected void parseInputFile(StreamRDF sink) {
+        try {
+            String canonicalPath = infile.getCanonicalPath();
+            LOGGER.debug("Streaming triples from file " + canonicalPath);
+            TripleCounter counter = new TripleCounter(sink);
+            if (getInputCompression() != Compression.NONE) {
+                parseCompressedInput(counter);
+            } else {
+                RDFDataMgr.parse(counter, canonicalPath);
+            }
+            metrics.setCounter(TransformMetrics.TRIPLES_READ, counter.count);
+        } catch (IOException e) {
+            throw new TransformException("Can't read " + infile, e);
+        }
+    }
 
+    /**
+     * Return the compression of the input file. Throws 
+     * UnsupportedOperationException if it can't be read.
+     */
+    protected Compression getInputCompression() throws IOException {
+        
+        if (inputCompression == null) {
+            inputCompression = Compression.detect(infile);
+            if (!inputCompression.isSupported()) {
+                throw new UnsupportedOperationException("Can't read " 
+                        + infile + ": no codec for " 
+                        + inputCompression.getExtension() + " compression");
+            }
+        }
+        return inputCompression;
+    }
+    
+    /**
+     * Parse gzipped input. Jena only decompresses files whose names end in
+     * .gz, so the stream is opened here; the RDF language is taken from the
+     * name without .gz.
+     */
+    private void parseCompressedInput(StreamRDF sink) throws IOException {
+        
+        String name = Compression.GZIP.stripExtension(infile.getName());
+        InputStream in = new GZIPInputStream(new FileInputStream(infile), 
+                GZIP_INPUT_BUFFER_SIZE);
         try {
-            outStream = new FileOutputStream(outfile, false);
-            RDFDataMgr.write(outStream, model, format);
-                    
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }          
+            RDFDataMgr.parse(sink, in, IRILib.fileToIRI(infile), 
+                    RDFLanguages.filenameToLang(name, Lang.RDFXML));
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Whether the output is gzipped, as shown by the output file name 
+     * ending in .gz. Compression is done on several threads; see 
+     * ParallelGzipOutputStream.
+     */
+    protected boolean isOutputCompressed() {
+        return Compression.forName(outfile.getName()) == Compression.GZIP;
+    }
+
+    /**
+     * Open a buffered stream to a temporary file in the output directory. 
+     * closeOutputFile() renames it to the output file, so the output file 
+     * never exists half-written. In streaming mode, callers wrap the stream 
+     * with getOutputWriter() and call start() and finish() on the writer 
+     * before closing the stream. Callers call abortOutputFile() in a finally
+     * block, so that a failed write leaves no temporary file behind.
+     */
+    protected OutputStream openOutputFile() {
+        ChannelOutputStream channel = openOutputChannel();
+        if (isOutputCompressed()) {
+            return new ParallelGzipOutputStream(channel);
+        }
+        return channel;
     }
     
+    /**
+     * Open the temporary output file without any compression.
+     */
+    private ChannelOutputStream openOutputChannel() {
+        try {
+            atomicOutfile = new AtomicFile(outfile);
+            writeStartNanos = System.nanoTime();
+            outputChannel = new ChannelOutputStream(
+                    atomicOutfile.getTempFile(), outputBufferSize);
+            return outputChannel;
+        } catch (IOException e) {
+            // The caller never gets a stream to abort
+            if (atomicOutfile != null) {
+                atomicOutfile.abort();
+                atomicOutfile = null;
+            }
+            throw new TransformException("Can't write " + outfile, e);
+        }
+    }
+
+    protected StreamRDF getOutputWriter(OutputStream outStream) {
+        StreamRDF writer = StreamRDFWriter.getWriterStream(
+                outStream, getStreamingFormat(format));
+        if (format.getLang().equals(Lang.TURTLE)) {
+            writer = new PrefixDeclarer(writer, outputPrefixes);
+        }
+        return new TripleCounter(writer) {
+            @Override
+            public void finish() {
+                super.finish();
+                metrics.setCounter(TransformMetrics.TRIPLES_WRITTEN, count);
+            }
+        };
+    }
+
+    protected void closeOutputFile(OutputStream outStream) {
+        try {
+            outStream.close();
+            atomicOutfile.commit();
+            atomicOutfile = null;
+        } catch (IOException e) {
+            abortOutputFile(outStream);
+            throw new TransformException("Can't write " + outfile, e);
+        }
+        
+        long bytes = outputChannel.getBytesWritten();
+        long nanos = Math.max(1, System.nanoTime() - writeStartNanos);
+        long bytesPerSecond = (long) (bytes * 1e9 / nanos);
+        metrics.setCounter("bytesWritten", bytes);
+        metrics.setCounter("bytesWrittenPerSecond", bytesPerSecond);
+        LOGGER.debug("Wrote " + bytes + " bytes to " + outfile + " at " 
+                + bytesPerSecond + " bytes/s");
+    }
+
+    /**
+     * Close the stream and delete the temporary output file, unless 
+     * closeOutputFile() has already moved it to the output file. Errors are
+     * logged rather than thrown, so as not to hide the one that caused the
+     * write to fail.
+     */
+    protected void abortOutputFile(OutputStream outStream) {
+        if (atomicOutfile == null) {
+            return;
+        }
+        File tempOutfile = atomicOutfile.getTempFile();
+        try {
+            outStream.close();
+        } catch (IOException e) {
+            LOGGER.debug("Can't close " + tempOutfile + ": " + e);
+        } catch (RuntimeException e) {
+            LOGGER.debug("Can't close " + tempOutfile + ": " + e);
+        }
+        try {
+            // Closing a gzip stream can fail before its channel is closed
+            outputChannel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Can't close " + tempOutfile + ": " + e);
+        }
+        if (!atomicOutfile.abort()) {
+            LOGGER.warn("Can't delete " + tempOutfile);
+        }
+        atomicOutfile = null;
+    }
+
+    /**
+     * Declares a set of prefixes when the stream starts, and drops later 
+     * declarations that repeat a prefix's current IRI, such as the input's
+     * own declarations of the same prefixes.
+     */
+    private static class PrefixDeclarer extends StreamRDFWrapper {
+        
+        private final Map<String, String> prefixes;
+        private final Map<String, String> declared = 
+                new HashMap<String, String>();
+        
+        PrefixDeclarer(StreamRDF sink, Map<String, String> prefixes) {
+            super(sink);
+            this.prefixes = prefixes;
+        }
+        
+        @Override
+        public void start() {
+            super.start();
+            for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+                prefix(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        @Override
+        public void prefix(String prefix, String iri) {
+            if (!iri.equals(declared.put(prefix, iri))) {
+                super.prefix(prefix, iri);
+            }
+        }
+    }
+
+    /**
+     * Counts the triples passing through a stream.
+     */
+    private static class TripleCounter extends StreamRDFWrapper {
+        
+        protected long count;
+        
+        TripleCounter(StreamRDF sink) {
+            super(sink);
+        }
+        
+        @Override
+        public void triple(Triple triple) {
+            count++;
+            super.triple(triple);
+        }
+    }
+
 }
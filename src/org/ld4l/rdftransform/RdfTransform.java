@@ -1,6 +1,9 @@
 package org.ld4l.rdftransform;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,12 +33,17 @@ public class RdfTransform {
     private static final Logger LOGGER = 
             LogManager.getLogger(RdfTransform.class);  
     
+    private static final String DEFAULT_TRANSFORMER = "skos-rbms";
+    
     public RdfTransform() {
         // TODO Auto-generated constructor stub
     }
 
     public static void main(String[] args) throws UsageException {
         
+        // Once per process: the transformers' metrics share the JVM's peaks
+        TransformMetrics.resetPeakHeap();
+        
         // Define program options
         Options options = getOptions();
         
@@ -46,33 +54,285 @@ public class RdfTransform {
             throw new UsageException("No commandline options specified");
         }       
         
+        // An input directory selects batch mode
         File infile = new File(cmd.getOptionValue("input"));
-        if (!infile.isFile()) {
+        boolean batch = infile.isDirectory();
+        if (!batch && !infile.isFile()) {
             throw new UsageException("Input file '"
                     + infile.getAbsolutePath() + "' does not exist.");
         }
         
         File outfile = new File(cmd.getOptionValue("output"));
-        if (!outfile.getParentFile().isDirectory()) {
+        if (batch) {
+            outfile.mkdirs();
+            if (!outfile.isDirectory()) {
+                throw new UsageException("Output directory '"
+                        + outfile.getAbsolutePath() 
+                        + "' can't be created.");
+            }
+        } else if (!outfile.getParentFile().isDirectory()) {
             throw new UsageException("Result file '"
                     + outfile.getAbsolutePath()
                     + "' does not exist, and we can't create it "
                     + "because its parent directory doesn't exist either.");
         }
         
+        if (!batch) {
+            checkCompression(infile, outfile);
+        }
+        
         RDFFormat format = getRdfFormat(cmd.getOptionValue("format"));
         // TODO Check to make sure filename matches format - issue a warning
         // and change filename extension if no match.
         
-        // In future we would have arguments specifying which type of 
-        // transformer to use.
-        RdfDataTransformer transformer = 
-                new SkosRbmsVocabTransformer(infile, outfile, format);
-        transformer.transform();
+        boolean streaming = cmd.hasOption("streaming");
+        if (streaming 
+                && RdfDataTransformer.getStreamingFormat(format) == null) {
+            throw new UsageException("Streaming mode doesn't support output "
+                    + "format '" + cmd.getOptionValue("format") + "'.");
+        }
+        
+        int parallelism = 1;
+        if (cmd.hasOption("parallelism")) {
+            try {
+                parallelism = 
+                        Integer.parseInt(cmd.getOptionValue("parallelism"));
+            } catch (NumberFormatException e) {
+                throw new UsageException("Parallelism must be an integer.");
+            }
+            if (parallelism < 1) {
+                throw new UsageException("Parallelism must be at least 1.");
+            }
+            if (streaming && !cmd.hasOption("pipelined")) {
+                throw new UsageException("Parallelism can't be combined "
+                        + "with streaming mode unless pipelined.");
+            }
+        }
+        
+        if (cmd.hasOption("pipelined") && !streaming) {
+            throw new UsageException("--pipelined needs streaming mode.");
+        }
+        int pipelineBatchSize = TriplePipeline.DEFAULT_BATCH_SIZE;
+        if (cmd.hasOption("pipeline-batch-size")) {
+            try {
+                pipelineBatchSize = Integer.parseInt(
+                        cmd.getOptionValue("pipeline-batch-size"));
+            } catch (NumberFormatException e) {
+                throw new UsageException("Pipeline batch size must be an "
+                        + "integer.");
+            }
+            if (pipelineBatchSize < 1) {
+                throw new UsageException("Pipeline batch size must be at "
+                        + "least 1.");
+            }
+        }
+        
+        List<TransformerFactory> factories = getTransformerFactories(
+                cmd.getOptionValue("transformer", DEFAULT_TRANSFORMER));
+        if (streaming && factories.size() > 1) {
+            throw new UsageException("Streaming mode can only run a single "
+                    + "transformer.");
+        }
+        
+        if (cmd.hasOption("label-index") && factories.size() > 1) {
+            throw new UsageException("--label-index can only be used with "
+                    + "a single transformer.");
+        }
+        
+        if (cmd.hasOption("incremental")) {
+            if (!format.equals(RDFFormat.NTRIPLES)) {
+                throw new UsageException("Incremental mode needs ntriples "
+                        + "output.");
+            }
+            if (factories.size() > 1) {
+                throw new UsageException("Incremental mode can only run a "
+                        + "single transformer.");
+            }
+            if (streaming || cmd.hasOption("tdb") 
+                    || cmd.hasOption("split-output")) {
+                throw new UsageException("Incremental mode can't be "
+                        + "combined with streaming, TDB or split output.");
+            }
+            if (Compression.forName(outfile.getName()) 
+                    != Compression.NONE) {
+                throw new UsageException("Incremental mode can't write "
+                        + "compressed output.");
+            }
+            // The subjects to recompute are found by exact label lookups
+            if (getLabelMatching(cmd.getOptionValue(
+                    "label-matching", "exact")) 
+                    != LabelResolver.Matching.EXACT) {
+                throw new UsageException("Incremental mode needs exact "
+                        + "label matching.");
+            }
+        }
+        
+        checkTransformerOptions(cmd, factories, infile, outfile, format, 
+                streaming);
+        
+        ChangeSetWriter.Format changeFormat = null;
+        if (cmd.hasOption("change-set")) {
+            changeFormat = getChangeFormat(cmd.getOptionValue("change-set"));
+            if (streaming) {
+                throw new UsageException("Change sets can't be written in "
+                        + "streaming mode.");
+            }
+            if (changeFormat == ChangeSetWriter.Format.NTRIPLES 
+                    && factories.size() > 1) {
+                throw new UsageException("N-Triples change sets need a "
+                        + "single transformer; use patch for a chain.");
+            }
+        } else if (cmd.hasOption("changes-only") 
+                || cmd.hasOption("gzip-changes")) {
+            throw new UsageException("--changes-only and --gzip-changes "
+                    + "need --change-set.");
+        }
+        if (cmd.hasOption("changes-only") && cmd.hasOption("incremental")) {
+            throw new UsageException("Incremental mode can't be combined "
+                    + "with --changes-only.");
+        }
+        
+        File tdbDirectory = null;
+        if (cmd.hasOption("tdb")) {
+            tdbDirectory = getTdbDirectory(cmd.getOptionValue("tdb"));
+            if (streaming || batch || parallelism > 1) {
+                throw new UsageException("TDB mode can't be combined with "
+                        + "streaming, batch mode or parallelism.");
+            }
+        }
+        
+        if (batch) {
+            transformBatch(cmd, infile, outfile, format, factories, 
+                    streaming, parallelism, pipelineBatchSize, changeFormat);
+            LOGGER.info("Done!");
+            return;
+        }
+        
+        RdfDataTransformer transformer = TransformerChain.create(
+                factories, infile, outfile, format, streaming);
+        transformer.setParallelism(parallelism);
+        transformer.setPipelined(cmd.hasOption("pipelined"));
+        transformer.setPipelineBatchSize(pipelineBatchSize);
+        if (cmd.hasOption("buffer-size")) {
+            transformer.setOutputBufferSize(
+                    getBufferSize(cmd.getOptionValue("buffer-size")));
+        }
+        transformer.setSplitOutput(cmd.hasOption("split-output"));
+        transformer.setLabelIndex(cmd.hasOption("label-index"));
+        transformer.setLabelMatching(getLabelMatching(
+                cmd.getOptionValue("label-matching", "exact")));
+        UriMinter uriMinter = openUriRegistry(cmd);
+        if (uriMinter != null) {
+            transformer.setUriMinter(uriMinter);
+        }
+        transformer.setIncremental(cmd.hasOption("incremental"));
+        transformer.setChangeFormat(changeFormat);
+        transformer.setCompressChanges(cmd.hasOption("gzip-changes"));
+        transformer.setChangesOnly(cmd.hasOption("changes-only"));
+        transformer.setReport(cmd.hasOption("report"));
+        if (cmd.hasOption("turtle-stream-threshold")) {
+            transformer.setTurtleStreamingThreshold(getTurtleThreshold(
+                    cmd.getOptionValue("turtle-stream-threshold")));
+        }
+        if (tdbDirectory != null) {
+            transformer.setTdbDirectory(tdbDirectory);
+        }
+        if (cmd.hasOption("jmx")) {
+            transformer.getMetrics().registerMBean();
+        }
+        try {
+            transformer.transform();
+        } catch (TransformException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        saveUriRegistry(cmd, uriMinter);
+        if (cmd.hasOption("report")) {
+            transformer.writeReport();
+        }
         
         LOGGER.info("Done!");
     }
     
+    /**
+     * Transform each matching file in the input directory to the output
+     * directory. Exits with status 1 if any file failed.
+     */
+    private static void transformBatch(CommandLine cmd, File indir, 
+            File outdir, RDFFormat format, List<TransformerFactory> factories,
+            boolean streaming, int parallelism, int pipelineBatchSize,
+            ChangeSetWriter.Format changeFormat) throws UsageException {
+        
+        BatchTransformer batch = new BatchTransformer(indir, outdir, 
+                cmd.getOptionValue("glob", "*"), format, factories);
+        batch.setStreaming(streaming);
+        batch.setParallelism(parallelism);
+        batch.setPipelined(cmd.hasOption("pipelined"));
+        batch.setPipelineBatchSize(pipelineBatchSize);
+        batch.setLabelIndex(cmd.hasOption("label-index"));
+        batch.setLabelMatching(getLabelMatching(
+                cmd.getOptionValue("label-matching", "exact")));
+        UriMinter uriMinter = openUriRegistry(cmd);
+        if (uriMinter != null) {
+            batch.setUriMinter(uriMinter);
+        }
+        batch.setIncremental(cmd.hasOption("incremental"));
+        batch.setChangeFormat(changeFormat);
+        batch.setCompressChanges(cmd.hasOption("gzip-changes"));
+        batch.setChangesOnly(cmd.hasOption("changes-only"));
+        batch.setReport(cmd.hasOption("report"));
+        if (cmd.hasOption("turtle-stream-threshold")) {
+            batch.setTurtleStreamingThreshold(getTurtleThreshold(
+                    cmd.getOptionValue("turtle-stream-threshold")));
+        }
+        if (cmd.hasOption("virtual-threads")) {
+            if (cmd.hasOption("jobs")) {
+                throw new UsageException("--jobs can't be combined with "
+                        + "--virtual-threads.");
+            }
+            batch.setVirtualThreads(true);
+        }
+        if (cmd.hasOption("jobs")) {
+            try {
+                int jobs = Integer.parseInt(cmd.getOptionValue("jobs"));
+                if (jobs < 1) {
+                    throw new UsageException("Jobs must be at least 1.");
+                }
+                batch.setJobs(jobs);
+            } catch (NumberFormatException e) {
+                throw new UsageException("Jobs must be an integer.");
+            }
+        }
+        if (cmd.hasOption("buffer-size")) {
+            batch.setOutputBufferSize(
+                    getBufferSize(cmd.getOptionValue("buffer-size")));
+        }
+        if (cmd.hasOption("memory-budget")) {
+            batch.setMemoryBudget(
+                    getSize(cmd.getOptionValue("memory-budget")));
+        }
+        if (cmd.hasOption("jmx")) {
+            batch.getMetrics().registerMBean();
+        }
+        try {
+            batch.transform();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        saveUriRegistry(cmd, uriMinter);
+        if (cmd.hasOption("report")) {
+            batch.writeReport();
+        }
+        
+        long failed = batch.getMetrics().getCounter(
+                BatchTransformer.FILES_FAILED);
+        if (failed > 0) {
+            LOGGER.error(failed + " of the batch's files failed");
+            System.exit(1);
+        }
+    }
+    
     /**
      * Define the commandline options accepted by the program.
      * @return an Options object
@@ -85,7 +345,8 @@ public class RdfTransform {
                 .longOpt("input")
                 .required()
                 .hasArg()
-                .desc("Absolute or relative path to output file.")
+                .desc("Absolute or relative path to input file, or to a "
+                        + "directory of input files for batch mode.")
                 .argName("input")
                 .build());
              
@@ -93,7 +354,10 @@ public class RdfTransform {
                 .longOpt("output")
                 .required()
                 .hasArg()
-                .desc("Absolute or relative path to output file.")
+                .desc("Absolute or relative path to output file, or to the "
+                        + "output directory in batch mode. Output is gzipped "
+                        + "if the name ends in .gz; gzipped input is detected "
+                        + "automatically.")
                 .argName("output")
                 .build());
 
@@ -101,10 +365,204 @@ public class RdfTransform {
                 .longOpt("format")
                 .required()
                 .hasArg()
-                .desc("RDF serialization of output.")
+                .desc("RDF serialization of output: rdfxml, ntriples, "
+                        + "turtle, turtle-blocks, turtle-flat or thrift. "
+                        + "turtle is pretty-printed unless the model is "
+                        + "large; see --turtle-stream-threshold. "
+                        + "turtle-blocks groups each subject's triples and "
+                        + "turtle-flat writes one triple per line, both as "
+                        + "a stream. thrift is RDF Thrift, a binary format "
+                        + "for output that another Jena job will read.")
                 .argName("format")
                 .build());
 
+        options.addOption(Option.builder("t")
+                .longOpt("transformer")
+                .hasArg()
+                .desc("Comma-separated names of the transformers to run, in "
+                        + "order, over a single parse of the input. Defaults "
+                        + "to " + DEFAULT_TRANSFORMER + ".")
+                .argName("names")
+                .build());
+
+        options.addOption(Option.builder("s")
+                .longOpt("streaming")
+                .desc("Stream the input in two passes instead of loading it "
+                        + "into memory. Output format can be anything but "
+                        + "rdfxml; turtle is written as turtle-blocks. Not "
+                        + "supported by skos-rbms-sparql.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("pipelined")
+                .desc("In streaming mode, parse, rewrite and write at the "
+                        + "same time, on a parser thread, --parallelism "
+                        + "rewriting workers and a writer thread.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("pipeline-batch-size")
+                .hasArg()
+                .desc("Number of triples handed to a pipeline worker at a "
+                        + "time. Defaults to " 
+                        + TriplePipeline.DEFAULT_BATCH_SIZE + ".")
+                .argName("triples")
+                .build());
+
+        options.addOption(Option.builder("p")
+                .longOpt("parallelism")
+                .hasArg()
+                .desc("Number of threads used to parse and write N-Triples "
+                        + "and resolve concept labels, or the number of "
+                        + "pipeline workers. Defaults to 1.")
+                .argName("threads")
+                .build());
+
+        options.addOption(Option.builder("b")
+                .longOpt("buffer-size")
+                .hasArg()
+                .desc("Size of the output buffer in bytes; may end in k or m. "
+                        + "Defaults to 1m.")
+                .argName("size")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("split-output")
+                .desc("With parallel N-Triples output, leave one part file "
+                        + "per thread instead of concatenating them.")
+                .build());
+
+        options.addOption(Option.builder("g")
+                .longOpt("glob")
+                .hasArg()
+                .desc("In batch mode, glob selecting the input files, e.g. "
+                        + "*.rdf. Defaults to all files.")
+                .argName("pattern")
+                .build());
+
+        options.addOption(Option.builder("j")
+                .longOpt("jobs")
+                .hasArg()
+                .desc("In batch mode, number of files transformed at the "
+                        + "same time. Defaults to the number of processors.")
+                .argName("jobs")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("virtual-threads")
+                .desc("In batch mode, transform each file on its own "
+                        + "virtual thread, so that only the memory budget "
+                        + "limits how many run at once. Before Java 21, "
+                        + "uses a platform thread per file.")
+                .build());
+
+        options.addOption(Option.builder("m")
+                .longOpt("memory-budget")
+                .hasArg()
+                .desc("In batch mode, heap that the files being transformed "
+                        + "at one time may use, estimated from their size; "
+                        + "may end in k, m or g. Defaults to 3/4 of the "
+                        + "maximum heap.")
+                .argName("size")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("tdb")
+                .hasArg()
+                .desc("Hold the model in a TDB dataset in this directory, "
+                        + "which must be empty or not exist, instead of in "
+                        + "memory. For inputs larger than the heap.")
+                .argName("directory")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("label-index")
+                .desc("Write the concept label index to <output>.labels as a "
+                        + "memory-mappable file, and reuse it on later runs "
+                        + "over the same input. Needs a single transformer. "
+                        + "Not supported by skos-rbms-sparql.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("label-matching")
+                .hasArg()
+                .desc("How broader, narrower and related labels are matched "
+                        + "to concept labels: exact (the default), normalized "
+                        + "(ignoring case, spacing, Unicode form and trailing "
+                        + "qualifiers in parentheses) or fuzzy (normalized, "
+                        + "then by edit distance). Unless exact, how each "
+                        + "label without an exact match was resolved is "
+                        + "written to <output>.resolution.tsv. Not "
+                        + "supported by skos-rbms-sparql.")
+                .argName("matching")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("uri-registry")
+                .hasArg()
+                .desc("Check the URIs minted for new resources, such as "
+                        + "concept schemes, against the registry in this "
+                        + "file, and add them to it. URIs are minted from "
+                        + "labels, so they are the same on every run; the "
+                        + "registry keeps them from colliding across runs. "
+                        + "Created if it doesn't exist.")
+                .argName("file")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("incremental")
+                .desc("Keep a manifest of each run in <output>.manifest, and "
+                        + "on the next run transform only the subjects that "
+                        + "changed and patch the previous output. Needs "
+                        + "ntriples output, a single transformer and exact "
+                        + "label matching. Not supported by "
+                        + "skos-rbms-sparql.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("change-set")
+                .hasArg()
+                .desc("Also write the triples deleted and added by the "
+                        + "transform: patch writes RDF Patch to "
+                        + "<output>.rdfp, ntriples writes "
+                        + "<output>.deletes.nt and <output>.inserts.nt.")
+                .argName("format")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("changes-only")
+                .desc("Write only the change set, not the transformed "
+                        + "model.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("gzip-changes")
+                .desc("Gzip the change set files.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("turtle-stream-threshold")
+                .hasArg()
+                .desc("With turtle output, write models of at least this "
+                        + "many triples as turtle-blocks rather than pretty "
+                        + "Turtle, which holds a second copy of the model. "
+                        + "0 means always. Defaults to " 
+                        + RdfDataTransformer.DEFAULT_TURTLE_STREAMING_THRESHOLD
+                        + ".")
+                .argName("triples")
+                .build());
+
+        options.addOption(Option.builder("r")
+                .longOpt("report")
+                .desc("Write a JSON report of phase timings and counts next "
+                        + "to the output file.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("jmx")
+                .desc("Expose run metrics as a JMX MBean.")
+                .build());
+
         return options;
     }
 
@@ -133,7 +591,204 @@ public class RdfTransform {
         return null;
     }
 
-    private static RDFFormat getRdfFormat(String format) {
+    private static List<TransformerFactory> getTransformerFactories(
+            String names) throws UsageException {
+        
+        TransformerRegistry registry = new TransformerRegistry();
+        List<TransformerFactory> factories = 
+                new ArrayList<TransformerFactory>();
+        for (String name : names.split(",")) {
+            TransformerFactory factory = registry.get(name.trim());
+            if (factory == null) {
+                throw new UsageException("Unknown transformer '" + name.trim()
+                        + "'. Available transformers: " 
+                        + registry.getNames() + ".");
+            }
+            factories.add(factory);
+        }
+        return factories;
+    }
+
+    /**
+     * Check that the input can be decompressed and the output compressed:
+     * only gzip is supported.
+     */
+    private static void checkCompression(File infile, File outfile) 
+            throws UsageException {
+        
+        Compression compression;
+        try {
+            compression = Compression.detect(infile);
+        } catch (IOException e) {
+            throw new UsageException("Can't read input file '" 
+                    + infile.getAbsolutePath() + "': " + e.getMessage());
+        }
+        if (!compression.isSupported()) {
+            throw new UsageException("Can't read " 
+                    + compression.getExtension() + " compressed input; "
+                    + "only gzip is supported.");
+        }
+        compression = Compression.forName(outfile.getName());
+        if (!compression.isSupported()) {
+            throw new UsageException("Can't write "
+                    + compression.getExtension() + " compressed output; "
+                    + "only gzip is supported.");
+        }
+    }
+
+    private static File getTdbDirectory(String path) 
+            throws UsageException {
+        
+        File directory = new File(path);
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            throw new UsageException("TDB directory '" 
+                    + directory.getAbsolutePath() + "' can't be created.");
+        }
+        String[] contents = directory.list();
+        if (contents == null || contents.length > 0) {
+            throw new UsageException("TDB directory '" 
+                    + directory.getAbsolutePath() + "' isn't empty.");
+        }
+        return directory;
+    }
+
+    /**
+     * Return the URI minter whose registry is in the --uri-registry file, 
+     * or null if there is none.
+     */
+    private static UriMinter openUriRegistry(CommandLine cmd) 
+            throws UsageException {
+        
+        if (!cmd.hasOption("uri-registry")) {
+            return null;
+        }
+        File file = new File(cmd.getOptionValue("uri-registry"));
+        try {
+            return UriMinter.open(file);
+        } catch (IOException e) {
+            throw new UsageException("Can't read URI registry '" 
+                    + file.getAbsolutePath() + "': " + e.getMessage());
+        }
+    }
+
+    private static void saveUriRegistry(CommandLine cmd, 
+            UriMinter uriMinter) {
+        
+        if (uriMinter == null) {
+            return;
+        }
+        File file = new File(cmd.getOptionValue("uri-registry"));
+        try {
+            uriMinter.save(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        LOGGER.info("Minted " + uriMinter.getMinted() + " new URIs; " 
+                + uriMinter.size() + " in registry " + file);
+    }
+
+    private static ChangeSetWriter.Format getChangeFormat(String format) 
+            throws UsageException {
+        
+        if (format.equals("patch")) {
+            return ChangeSetWriter.Format.PATCH;
+        }
+        if (format.equals("ntriples")) {
+            return ChangeSetWriter.Format.NTRIPLES;
+        }
+        throw new UsageException("Unknown change set format '" + format 
+                + "'. Use patch or ntriples.");
+    }
+
+    /**
+     * Fail now, rather than once per file in batch mode, if a transformer 
+     * doesn't support streaming mode or the label options.
+     */
+    private static void checkTransformerOptions(CommandLine cmd, 
+            List<TransformerFactory> factories, File infile, File outfile, 
+            RDFFormat format, boolean streaming) throws UsageException {
+        
+        try {
+            RdfDataTransformer transformer = TransformerChain.create(
+                    factories, infile, outfile, format, streaming);
+            transformer.setLabelIndex(cmd.hasOption("label-index"));
+            transformer.setLabelMatching(getLabelMatching(
+                    cmd.getOptionValue("label-matching", "exact")));
+            transformer.setIncremental(cmd.hasOption("incremental"));
+        } catch (UnsupportedOperationException e) {
+            throw new UsageException(e.getMessage() + ".");
+        }
+    }
+
+    private static LabelResolver.Matching getLabelMatching(String matching) 
+            throws UsageException {
+        
+        for (LabelResolver.Matching value 
+                : LabelResolver.Matching.values()) {
+            if (value.name().equalsIgnoreCase(matching)) {
+                return value;
+            }
+        }
+        throw new UsageException("Unknown label matching '" + matching 
+                + "'. Use exact, normalized or fuzzy.");
+    }
+
+    private static int getBufferSize(String size) throws UsageException {
+        
+        long bufferSize = getSize(size);
+        if (bufferSize > Integer.MAX_VALUE) {
+            throw new UsageException("Invalid buffer size '" + size + "'.");
+        }
+        return (int) bufferSize;
+    }
+
+    private static long getTurtleThreshold(String threshold) 
+            throws UsageException {
+        
+        try {
+            long triples = Long.parseLong(threshold);
+            if (triples >= 0) {
+                return triples;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new UsageException("Invalid Turtle streaming threshold '" 
+                + threshold + "'.");
+    }
+
+    /**
+     * Parse a size in bytes, optionally ending in k, m or g.
+     */
+    private static long getSize(String size) throws UsageException {
+        
+        long multiplier = 1;
+        String digits = size.toLowerCase();
+        if (digits.endsWith("k")) {
+            multiplier = 1 << 10;
+        } else if (digits.endsWith("m")) {
+            multiplier = 1 << 20;
+        } else if (digits.endsWith("g")) {
+            multiplier = 1 << 30;
+        }
+        if (multiplier > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long bytes = Long.parseLong(digits) * multiplier;
+            if (bytes > 0) {
+                return bytes;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new UsageException("Invalid size '" + size + "'.");
+    }
+
+    private static RDFFormat getRdfFormat(String format) 
+            throws UsageException {
         
         if (format.equals("rdfxml")) {
             return RDFFormat.RDFXML;
@@ -144,10 +799,18 @@ public class RdfTransform {
         if (format.equals("turtle")) {
             return RDFFormat.TURTLE;
         }
-        // Default
-        return RDFFormat.RDFXML;
-
-
+        if (format.equals("turtle-blocks")) {
+            return RDFFormat.TURTLE_BLOCKS;
+        }
+        if (format.equals("turtle-flat")) {
+            return RDFFormat.TURTLE_FLAT;
+        }
+        if (format.equals("thrift")) {
+            return RDFFormat.RDF_THRIFT;
+        }
+        throw new UsageException("Unknown format '" + format 
+                + "'. Use rdfxml, ntriples, turtle, turtle-blocks, "
+                + "turtle-flat or thrift.");
     }
     /**
      * Print help text.
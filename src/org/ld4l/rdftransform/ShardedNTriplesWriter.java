@@ -0,0 +1,168 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Writes a graph as N-Triples on several threads. Subjects are partitioned
+ * by hash into one shard per thread, and each shard is written to its own
+ * part file. N-Triples has no state across lines, so the part files can
+ * simply be concatenated to give the complete output. The same goes for
+ * gzip, so compressed output is written by gzipping each part on its own
+ * thread.
+ */
+public class ShardedNTriplesWriter {
+
+    private final int shards;
+    private final int bufferSize;
+    private final boolean gzip;
+
+    public ShardedNTriplesWriter(int shards, int bufferSize) {
+        this(shards, bufferSize, false);
+    }
+
+    public ShardedNTriplesWriter(int shards, int bufferSize, boolean gzip) {
+        this.shards = shards;
+        this.bufferSize = bufferSize;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Write the graph to part files named after the specified file, with
+     * suffixes .part-00000, .part-00001, etc. Returns the part files in
+     * order. If any shard fails, all the part files are deleted.
+     */
+    public List<File> write(final Graph graph, File file) throws IOException {
+
+        final List<List<Node>> subjects = partitionSubjects(graph);
+
+        List<File> parts = new ArrayList<File>();
+        ExecutorService executor = Executors.newFixedThreadPool(shards);
+        boolean written = false;
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < shards; i++) {
+                final File part = new File(
+                        file.getPath() + String.format(".part-%05d", i));
+                final List<Node> shardSubjects = subjects.get(i);
+                parts.add(part);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeShard(graph, shardSubjects, part);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            written = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error writing shard", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (!written) {
+                // Let the other shards stop before their files go
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delete(parts);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Delete whichever of the part files exist.
+     */
+    public static void delete(List<File> parts) {
+        for (File part : parts) {
+            part.delete();
+        }
+    }
+
+    /**
+     * Append the part files to the output stream in order, using
+     * FileChannel.transferTo, and delete them.
+     */
+    public static void concatenate(List<File> parts, ChannelOutputStream out)
+            throws IOException {
+        for (File part : parts) {
+            out.transferFrom(part);
+            part.delete();
+        }
+    }
+
+    private List<List<Node>> partitionSubjects(Graph graph) {
+
+        List<List<Node>> subjects = new ArrayList<List<Node>>(shards);
+        for (int i = 0; i < shards; i++) {
+            subjects.add(new ArrayList<Node>());
+        }
+        ExtendedIterator<Node> it =
+                GraphUtil.listSubjects(graph, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                Node subject = it.next();
+                subjects.get((subject.hashCode() & 0x7fffffff) % shards)
+                        .add(subject);
+            }
+        } finally {
+            it.close();
+        }
+        return subjects;
+    }
+
+    private void writeShard(Graph graph, List<Node> subjects, File part)
+            throws IOException {
+
+        OutputStream out = new ChannelOutputStream(part, bufferSize);
+        if (gzip) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        try {
+            StreamRDF writer =
+                    StreamRDFWriter.getWriterStream(out, RDFFormat.NTRIPLES);
+            writer.start();
+            for (Node subject : subjects) {
+                ExtendedIterator<Triple> triples =
+                        graph.find(subject, Node.ANY, Node.ANY);
+                try {
+                    while (triples.hasNext()) {
+                        writer.triple(triples.next());
+                    }
+                } finally {
+                    triples.close();
+                }
+            }
+            writer.finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,25 +1,45 @@
 package org.ld4l.rdftransform;
 
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import org.apache.jena.ontology.OntClass;
-import org.apache.jena.ontology.OntDocumentManager;
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Literal;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.ResIterator;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.rdf.model.StmtIterator;
 import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
+import org.apache.jena.vocabulary.SKOS;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -29,116 +49,211 @@ public class SkosRbmsVocabTransformer extends RdfDataTransformer {
     private static final Logger LOGGER = 
                 LogManager.getLogger(SkosRbmsVocabTransformer.class);  
     
-    private static final String SKOS_NS = 
-            "http://www.w3.org/2004/02/skos/core#";
+    // Number of statements below which a parallel label resolution task
+    // stops splitting and does the work itself.
+    private static final int PARALLEL_CHUNK_SIZE = 2048;
     
     private static final String RBMS_NS = "http://rbms.info/vocab/";  
     private static final String RBMS_SCHEME_NS = RBMS_NS + "scheme/";
     
-    private OntModel skosOntModel;
+    // Map concept-to-concept property string values to Concept URIs
+    private LabelIndex concepts; 
     
-    private OntClass conceptClass;
-    private OntClass conceptSchemeClass;
+    // Concept nodes by label index id, created on first use
+    private Node[] conceptNodes;
     
-    private Property prefLabelProp;
-
+    // Resolves labels without an exact match, unless matching is exact
+    private LabelResolver resolver;
 
+    // Map concept scheme labels to scheme URIs
+    private Map<String, String> conceptSchemes = 
+            new LinkedHashMap<String, String>();
     
-    // Map concept-to-concept property string values to Concept URIs
-    private Map<String, String> concepts; 
-
-    private int schemeNum;    
-    private int conceptNum;
+    private int conceptCount;
+    
+    // Incremental mode: the manifest of this run, the subjects whose output
+    // is recomputed (null when every subject's is), the subjects whose 
+    // previous output lines are dropped, and the schemes minted in this run.
+    private TransformManifest manifest;
+    private Set<Node> scope;
+    private Set<String> staleSubjects;
+    private List<Node> newSchemes = new ArrayList<Node>();
 
     
     public SkosRbmsVocabTransformer(File infile, File outfile, RDFFormat format)  {
-        super(infile, outfile, format);
-        
-        loadSkosOntModel(); 
-        loadOntResources();
- 
-        // Numbering starts from 0
-        schemeNum = -1;
-        conceptNum = -1;
+        this(infile, outfile, format, false);
     }
     
-    private void loadSkosOntModel() {
-        
-        OntDocumentManager mgr = new OntDocumentManager();
-        // For now, no reasoning in model
-        OntModelSpec spec = new OntModelSpec(OntModelSpec.OWL_MEM);                
-        spec.setDocumentManager(mgr);    
-        skosOntModel = ModelFactory.createOntologyModel(spec);
-        skosOntModel.read(SKOS_NS);
+    public SkosRbmsVocabTransformer(File infile, File outfile, 
+            RDFFormat format, boolean streaming)  {
+        super(infile, outfile, format, streaming);
+        outputPrefixes.put("rbms", RBMS_NS);
     }
     
     /**
-     * Define OntResources needed by multiple methods.
+     * Registers this transformer under the name skos-rbms.
      */
-    private void loadOntResources() {
+    public static class Factory implements TransformerFactory {
 
-        conceptClass = skosOntModel.createClass(SKOS_NS + "Concept");
-        conceptSchemeClass = 
-                skosOntModel.createClass(SKOS_NS + "ConceptScheme");   
-        
-        prefLabelProp = 
-                skosOntModel.getOntProperty(SKOS_NS + "prefLabel"); 
-                            
+        @Override
+        public String getName() {
+            return "skos-rbms";
+        }
+
+        @Override
+        public RdfDataTransformer create(File infile, File outfile,
+                RDFFormat format, boolean streaming) {
+            return new SkosRbmsVocabTransformer(
+                    infile, outfile, format, streaming);
+        }
     }
     
-    private void loadConcepts() {
+    // Package visibility so TransformBenchmark can time each phase.
+    void loadConcepts() {
         
-        Property notationProp = 
-                skosOntModel.getOntProperty(SKOS_NS + "notation");
-        
-        concepts = new HashMap<String, String>();
+        metrics.startPhase("loadConcepts");
+        ConceptDictionary dictionary = openConcepts();
 
         ResIterator subjects = model.listSubjects();
         while (subjects.hasNext()) {     
-            conceptNum++;
+            conceptCount++;
             Resource subject = subjects.nextResource();  
+            boolean inScope = scope == null || scope.contains(subject.asNode());
             
-            assertions.add(subject, RDF.type, conceptClass);
+            if (inScope) {
+                assertions.add(subject, RDF.type, SKOS.Concept);
+            }
             
             String subjectUri = subject.getURI();
-            Statement stmt = subject.getProperty(prefLabelProp);
+            Statement stmt = subject.getProperty(SKOS.prefLabel);
             if (stmt == null) {
                 LOGGER.info("No skos:prefLabel for resource " + subjectUri);
-                stmt = subject.getProperty(notationProp);
+                stmt = subject.getProperty(SKOS.notation);
             }
             if (stmt == null) {
                 LOGGER.info("No skos:notation for resource " + subjectUri);            
+                metrics.increment("conceptsWithoutLabel", 1);
             } else {
                 Literal literal = stmt.getLiteral();
                 String label = literal.getLexicalForm();
 
-                concepts.put(label, subjectUri);
+                // A blank node can't be the target of a link
+                if (dictionary != null && subjectUri != null) {
+                    dictionary.put(label, subjectUri);
+                }
                 
                 // Add rdfs:label
-                assertions.add(subject, RDFS.label, literal);
+                if (inScope) {
+                    assertions.add(subject, RDFS.label, literal);
+                }
                 // LOGGER.debug(label + ": " + subjectUri);
 
             }
         }
+        reportSharedLabels(dictionary);
+        saveConcepts(dictionary);
+        conceptNodes = new Node[concepts.getIdLimit()];
+        createResolver();
+        metrics.setCounter("concepts", concepts.size());
+        metrics.endPhase();
+    }
+    
+    /**
+     * If a label index was persisted by an earlier run over the same input,
+     * use it as the concepts map and return null. Otherwise start a new 
+     * dictionary as the concepts map, and return it to be filled.
+     */
+    private ConceptDictionary openConcepts() {
+        
+        if (labelIndex && getLabelIndexFile().isFile()) {
+            File file = getLabelIndexFile();
+            byte[] inputHash = getInputHash();
+            try {
+                LabelIndexFile index = LabelIndexFile.open(file);
+                if (Arrays.equals(index.getInputHash(), inputHash)) {
+                    LOGGER.info("Reusing label index " + file);
+                    concepts = index;
+                    return null;
+                }
+                LOGGER.info("Label index " + file + " is out of date");
+            } catch (IOException e) {
+                LOGGER.warn("Can't read label index " + file + ", " 
+                        + "rebuilding it: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Whatever is wrong with the file, it can be rebuilt
+                LOGGER.warn("Can't read label index " + file + ", " 
+                        + "rebuilding it: " + e);
+            }
+        }
+        ConceptDictionary dictionary = new ConceptDictionary(RBMS_NS);
+        concepts = dictionary;
+        return dictionary;
+    }
+    
+    /**
+     * Log each label that several concepts share, with the concept that 
+     * links to it resolve to, and count them. Nothing is reported for a 
+     * reused label index.
+     */
+    private void reportSharedLabels(ConceptDictionary dictionary) {
+        
+        if (dictionary == null) {
+            return;
+        }
+        for (int entry = 0; entry < dictionary.size(); entry++) {
+            if (dictionary.isShared(entry)) {
+                LOGGER.info("Label \"" + dictionary.getLabel(entry) 
+                        + "\" is shared by several concepts; links to it "
+                        + "resolve to " + dictionary.getUri(entry));
+            }
+        }
+        metrics.setCounter("sharedLabels", dictionary.getSharedCount());
+    }
+    
+    /**
+     * Persist a newly built concepts map, if requested. The output doesn't
+     * depend on it, so failing to write it isn't fatal.
+     */
+    private void saveConcepts(ConceptDictionary dictionary) {
+        
+        if (!labelIndex || dictionary == null) {
+            return;
+        }
+        try {
+            LabelIndexFile.write(dictionary, getInputHash(), 
+                    getLabelIndexFile());
+        } catch (IOException e) {
+            LOGGER.warn("Can't write label index " + getLabelIndexFile() 
+                    + ": " + e.getMessage());
+        }
     }
     
-    public void transform() {
+    protected void transformModel() {
+        
+        if (incremental) {
+            prepareIncrementalRun();
+        }
         
         loadConcepts();
         
         createConceptSchemes();
         
-        transformStringToThing(skosOntModel.getOntProperty(SKOS_NS + "broader"));
-                   
-        transformStringToThing(skosOntModel.getOntProperty(SKOS_NS + "narrower")); 
+        if (parallelism > 1 && scope == null) {
+            transformStringToThingInParallel(
+                    SKOS.broader, SKOS.narrower, SKOS.related);
+        } else {
         
-        transformStringToThing(skosOntModel.getOntProperty(SKOS_NS + "related"));
-
-        writeNewModel();
+            transformStringToThing(SKOS.broader);
+                   
+            transformStringToThing(SKOS.narrower); 
         
-        LOGGER.debug("Number of concepts: " + (conceptNum + 1));
-        LOGGER.debug("Number of schemes: " + (schemeNum + 1));
+            transformStringToThing(SKOS.related);
+        }
+        finishResolution();
         
+        LOGGER.debug("Number of concepts: " + conceptCount);
+        LOGGER.debug("Number of schemes: " + conceptSchemes.size());
+        metrics.setCounter("conceptSchemes", conceptSchemes.size());
                 
     }
    
@@ -152,31 +267,25 @@ public class SkosRbmsVocabTransformer extends RdfDataTransformer {
      * rdfs:label "label" .
      * 
      */
-    private void createConceptSchemes() {
+    void createConceptSchemes() {
+
+        metrics.startPhase("createConceptSchemes");
 
-        Property hasTopConceptProp = 
-                skosOntModel.getOntProperty(SKOS_NS + "hasTopConcept");
-        Property inSchemeProp =
-                skosOntModel.getOntProperty(SKOS_NS + "inScheme");  
-        
-        // Map concept-to-concept property string values to Concept URIs, to
-        // determine whether to create a new concept scheme or re-use an 
-        // existing one.
-        Map<String, String> conceptSchemes = new HashMap<String, String>();
-                  
         // Change literal values for hasTopConcept to a ConceptScheme
         // resource and an inScheme assertion.
         StmtIterator statements = 
-                model.listStatements((Resource) null, hasTopConceptProp, 
+                model.listStatements((Resource) null, SKOS.hasTopConcept, 
                         (RDFNode) null);
 
         while (statements.hasNext()) {
             Statement stmt = statements.nextStatement();
+            Resource subject = stmt.getSubject();
+            if (scope != null && !scope.contains(subject.asNode())) {
+                continue;
+            }
 
             // Remove the faulty statement
             retractions.add(stmt);
-            
-            Resource subject = stmt.getSubject();
 
             String schemeLabel = stmt.getLiteral().getLexicalForm();                    
             String schemeUri;
@@ -185,32 +294,34 @@ public class SkosRbmsVocabTransformer extends RdfDataTransformer {
             // This string value has already been seen
             if (conceptSchemes.containsKey(schemeLabel)) {
                 schemeUri = conceptSchemes.get(schemeLabel);
-                scheme = assertions.getResource(schemeUri);
+                scheme = ResourceFactory.createResource(schemeUri);
             // New string value  
             } else {
                 scheme = createScheme(schemeLabel);
                 conceptSchemes.put(schemeLabel, scheme.getURI());
             }
             
-            assertions.add(subject, inSchemeProp, scheme);
+            assertions.add(subject, SKOS.inScheme, scheme);
 
         }
+        metrics.endPhase();
     }
     
     private Resource createScheme(String schemeLabel) { 
        
-        Resource scheme = assertions.createResource(mintSchemeUri());
-        assertions.add(scheme, RDF.type, conceptSchemeClass);
+        Resource scheme = ResourceFactory.createResource(
+                mintSchemeUri(schemeLabel));
+        assertions.add(scheme, RDF.type, SKOS.ConceptScheme);
         assertions.add(scheme, RDFS.label, schemeLabel);
-        assertions.add(scheme, prefLabelProp, schemeLabel);
+        assertions.add(scheme, SKOS.prefLabel, schemeLabel);
+        newSchemes.add(scheme.asNode());
         return scheme;
     }
     
-    private String mintSchemeUri() {      
-        schemeNum++;
+    private String mintSchemeUri(String schemeLabel) {      
         // ASK JASON: Or just use RBMS_NS? Or put concepts in RBMS_NS + 
         // "concept/" namespace too?
-        return RBMS_SCHEME_NS + schemeNum;
+        return uriMinter.mint(RBMS_SCHEME_NS, schemeLabel);
     }
 
     /**
@@ -221,60 +332,862 @@ public class SkosRbmsVocabTransformer extends RdfDataTransformer {
      * :concept1 prop :concept2.
      * 
      */
-    private void transformStringToThing(Property prop) {
+    void transformStringToThing(Property prop) {
 
-        StmtIterator stmts = 
-                model.listStatements((Resource) null, prop, (RDFNode) null); 
-                                     
-        while (stmts.hasNext()) {
-            Statement stmt = stmts.nextStatement();
+        metrics.startPhase("transformStringToThing(" + prop.getLocalName() 
+                + ")");
+        long unresolved = 0;
 
-            // Remove the faulty statement
-            retractions.add(stmt);
+        // Work on triples rather than statements, so that the loop 
+        // allocates nothing but the triples it asserts.
+        Node predicate = prop.asNode();
+        ExtendedIterator<Triple> triples = 
+                model.getGraph().find(Node.ANY, predicate, Node.ANY); 
+        try {
+            while (triples.hasNext()) {
+                Triple triple = triples.next();
+                Node subject = triple.getSubject();
+                if (!triple.getObject().isLiteral() 
+                        || (scope != null && !scope.contains(subject))) {
+                    continue;
+                }
+    
+                // Remove the faulty statement
+                retractions.add(triple);
+                
+                Node concept = resolveConcept(triple.getObject());
+                if (concept != null) {
+                    assertions.add(Triple.create(subject, predicate, concept));
+                } else {
+                    unresolved++;
+                }
+                
+                /*
+                // New string value 
+                // Commenting out because this case doesn't appear in the data
+                } else {
+                    concept = createConcept(conceptLabel);
+                    concepts.put(conceptLabel, concept.getURI());
+                }
+                assertions.add(subject, prop, concept);
+                */
+            }
+        } finally {
+            triples.close();
+        }
+        countUnresolvedLabels(prop.getLocalName(), unresolved);
+        metrics.endPhase();
+    }
+    
+    /**
+     * Return the concept with the label given by a literal, or null if there
+     * is none. Looks the label up once, and creates the concept's node only
+     * the first time it is resolved. Safe to call from several threads: at
+     * worst two threads both create the same node.
+     */
+    private Node resolveConcept(Node literal) {
+        
+        String label = literal.getLiteralLexicalForm();
+        int id = concepts.getId(label);
+        if (id < 0 && resolver != null) {
+            id = resolver.resolve(label);
+        }
+        if (id < 0) {
+            return null;
+        }
+        Node concept = conceptNodes[id];
+        if (concept == null) {
+            concept = NodeFactory.createURI(concepts.getUri(id));
+            conceptNodes[id] = concept;
+        }
+        return concept;
+    }
+    
+    /**
+     * Build the resolver for labels without an exact match, if label 
+     * matching goes beyond exact.
+     */
+    private void createResolver() {
+        
+        if (labelMatching == LabelResolver.Matching.EXACT) {
+            return;
+        }
+        metrics.startPhase("buildLabelResolver");
+        resolver = new LabelResolver(concepts, labelMatching);
+        metrics.endPhase();
+    }
+    
+    /**
+     * Count the labels resolved by the resolver and write its report to 
+     * getResolutionReportFile(). The output doesn't depend on the report, 
+     * so failing to write it isn't fatal.
+     */
+    private void finishResolution() {
+        
+        if (resolver == null) {
+            return;
+        }
+        for (LabelResolver.Method method : LabelResolver.Method.values()) {
+            long[] count = resolver.count(method);
+            String name = method.name().toLowerCase();
+            metrics.setCounter("labelsResolved." + name, count[1]);
+            metrics.setCounter("distinctLabelsResolved." + name, count[0]);
+        }
+        File report = getResolutionReportFile();
+        try {
+            resolver.writeReport(report);
+            LOGGER.info("Wrote label resolution report " + report);
+        } catch (IOException e) {
+            LOGGER.warn("Can't write label resolution report " + report 
+                    + ": " + e.getMessage());
+        }
+    }
+    
+    private void countUnresolvedLabels(String propName, long unresolved) {
+        metrics.increment(TransformMetrics.UNRESOLVED_LABELS, unresolved);
+        metrics.increment(TransformMetrics.UNRESOLVED_LABELS + "." + propName,
+                unresolved);
+    }
+    
+    /**
+     * Incremental mode: fingerprint every subject of the input, and if the
+     * previous run left a manifest and its output is unchanged, limit the 
+     * transform to the subjects that changed and their dependents. 
+     * Otherwise every subject is transformed, as in a full run. Needs exact
+     * label matching.
+     */
+    private void prepareIncrementalRun() {
+        
+        // findAffectedSubjects() looks changed labels up exactly, so it 
+        // would miss the literals that resolve to them by looser matching.
+        // Drop any manifest, so that a later run doesn't patch this output.
+        if (labelMatching != LabelResolver.Matching.EXACT) {
+            LOGGER.info("Label matching isn't exact: transforming all "
+                    + "subjects without a manifest");
+            getManifestFile().delete();
+            return;
+        }
+        
+        metrics.startPhase("fingerprint");
+        manifest = buildManifest();
+        metrics.endPhase();
+        if (manifest == null) {
+            LOGGER.info("Input has blank nodes, which can't be matched "
+                    + "between runs: transforming all subjects");
+            return;
+        }
+        
+        TransformManifest previous = readPreviousManifest();
+        if (previous == null) {
+            return;
+        }
+        // A scheme URI the registry gives to another label can't be reused,
+        // and minting a new one would move every concept in the scheme,
+        // which the diff doesn't track.
+        for (Map.Entry<String, String> scheme
+                : previous.getSchemes().entrySet()) {
+            if (!uriMinter.register(scheme.getValue(), scheme.getKey())) {
+                LOGGER.warn("Scheme URI " + scheme.getValue() + " of \""
+                        + scheme.getKey() + "\" is registered to another "
+                        + "label: transforming all subjects");
+                return;
+            }
+        }
+        conceptSchemes.putAll(previous.getSchemes());
 
-            Resource subject = stmt.getSubject();
+        metrics.startPhase("diff");
+        findAffectedSubjects(previous);
+        metrics.endPhase();
+        LOGGER.info("Recomputing " + scope.size() + " subjects; " 
+                + (staleSubjects.size() - scope.size()) + " removed");
+        metrics.setCounter("subjectsRecomputed", scope.size());
+        metrics.setCounter("subjectsRemoved", 
+                staleSubjects.size() - scope.size());
+    }
+    
+    /**
+     * Return the manifest of the input model, or null if the model contains
+     * blank nodes.
+     */
+    private TransformManifest buildManifest() {
+        
+        Graph graph = model.getGraph();
+        TransformManifest newManifest = new TransformManifest();
+        ResIterator subjects = model.listSubjects();
+        try {
+            while (subjects.hasNext()) {
+                Resource subject = subjects.nextResource();
+                if (subject.isAnon()) {
+                    return null;
+                }
+                Statement stmt = subject.getProperty(SKOS.prefLabel);
+                if (stmt == null) {
+                    stmt = subject.getProperty(SKOS.notation);
+                }
+                newManifest.putSubject(subject.getURI(), 
+                        TransformManifest.fingerprint(graph, subject.asNode()),
+                        stmt == null ? null 
+                                : stmt.getLiteral().getLexicalForm());
+            }
+        } finally {
+            subjects.close();
+        }
+        if (hasBlankObject(graph)) {
+            return null;
+        }
+        return newManifest;
+    }
+    
+    private static boolean hasBlankObject(Graph graph) {
+        ExtendedIterator<Triple> triples = graph.find(Node.ANY, Node.ANY, 
+                Node.ANY);
+        try {
+            while (triples.hasNext()) {
+                if (triples.next().getObject().isBlank()) {
+                    return true;
+                }
+            }
+        } finally {
+            triples.close();
+        }
+        return false;
+    }
+    
+    /**
+     * Return the previous run's manifest, or null if there is none or the
+     * output has changed since it was written.
+     */
+    private TransformManifest readPreviousManifest() {
+        
+        File file = getManifestFile();
+        File outfile = getOutputFile();
+        if (!file.isFile() || !outfile.isFile()) {
+            return null;
+        }
+        try {
+            TransformManifest previous = TransformManifest.read(file);
+            if (previous.getOutputLength() != outfile.length()) {
+                LOGGER.info(outfile + " has changed since the last run: "
+                        + "transforming all subjects");
+                return null;
+            }
+            return previous;
+        } catch (IOException e) {
+            LOGGER.warn("Can't read manifest " + file + ": " 
+                    + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Set scope to the subjects that are new or whose triples changed, plus
+     * the subjects whose broader, narrower or related labels resolve 
+     * differently as a result; and staleSubjects to those plus the 
+     * subjects that were removed and the schemes no longer in use.
+     */
+    private void findAffectedSubjects(TransformManifest previous) {
+        
+        Map<String, TransformManifest.Subject> oldSubjects = 
+                previous.getSubjects();
+        Map<String, TransformManifest.Subject> newSubjects = 
+                manifest.getSubjects();
+        
+        staleSubjects = new HashSet<String>();
+        Set<String> candidateLabels = new HashSet<String>();
+        for (Map.Entry<String, TransformManifest.Subject> entry 
+                : newSubjects.entrySet()) {
+            TransformManifest.Subject old = oldSubjects.get(entry.getKey());
+            if (old == null 
+                    || old.fingerprint != entry.getValue().fingerprint) {
+                staleSubjects.add(entry.getKey());
+                candidateLabels.add(entry.getValue().label);
+                if (old != null) {
+                    candidateLabels.add(old.label);
+                }
+            }
+        }
+        Set<String> removed = new HashSet<String>();
+        for (Map.Entry<String, TransformManifest.Subject> entry 
+                : oldSubjects.entrySet()) {
+            if (!newSubjects.containsKey(entry.getKey())) {
+                removed.add(entry.getKey());
+                candidateLabels.add(entry.getValue().label);
+            }
+        }
+        candidateLabels.remove(null);
+        
+        // Labels whose concept is now different, or gone
+        LabelIndex oldConcepts = buildConceptDictionary(oldSubjects);
+        LabelIndex newConcepts = buildConceptDictionary(newSubjects);
+        Set<String> changedLabels = new HashSet<String>();
+        for (String label : candidateLabels) {
+            String oldUri = oldConcepts.get(label);
+            String newUri = newConcepts.get(label);
+            if (oldUri == null ? newUri != null : !oldUri.equals(newUri)) {
+                changedLabels.add(label);
+            }
+        }
+        
+        for (Property prop : new Property[] 
+                { SKOS.broader, SKOS.narrower, SKOS.related }) {
+            StmtIterator stmts = model.listStatements(
+                    (Resource) null, prop, (RDFNode) null);
+            while (stmts.hasNext()) {
+                Statement stmt = stmts.nextStatement();
+                RDFNode object = stmt.getObject();
+                if (object.isLiteral() && changedLabels.contains(
+                        object.asLiteral().getLexicalForm())) {
+                    staleSubjects.add(stmt.getSubject().getURI());
+                }
+            }
+        }
+        
+        scope = new HashSet<Node>();
+        for (String uri : staleSubjects) {
+            scope.add(NodeFactory.createURI(uri));
+        }
+        staleSubjects.addAll(removed);
+        
+        // Schemes that no hasTopConcept literal names any more. Their 
+        // triples are dropped from the output and the schemes from the
+        // manifest, as a full run wouldn't mint them.
+        Set<String> schemeLabels = new HashSet<String>();
+        StmtIterator topConcepts = model.listStatements(
+                (Resource) null, SKOS.hasTopConcept, (RDFNode) null);
+        while (topConcepts.hasNext()) {
+            schemeLabels.add(
+                    topConcepts.nextStatement().getLiteral().getLexicalForm());
+        }
+        Iterator<Map.Entry<String, String>> schemes = 
+                conceptSchemes.entrySet().iterator();
+        while (schemes.hasNext()) {
+            Map.Entry<String, String> scheme = schemes.next();
+            if (!schemeLabels.contains(scheme.getKey())) {
+                staleSubjects.add(scheme.getValue());
+                schemes.remove();
+            }
+        }
+    }
+    
+    private static ConceptDictionary buildConceptDictionary(
+            Map<String, TransformManifest.Subject> subjects) {
+        ConceptDictionary dictionary = new ConceptDictionary(RBMS_NS);
+        for (Map.Entry<String, TransformManifest.Subject> entry 
+                : subjects.entrySet()) {
+            if (entry.getValue().label != null) {
+                dictionary.put(entry.getValue().label, entry.getKey());
+            }
+        }
+        return dictionary;
+    }
+    
+    @Override
+    protected void writeNewModel() {
+        
+        if (scope == null) {
+            super.writeNewModel();
+        } else {
+            applyModelChanges();
+            patchOutput();
+        }
+        if (manifest != null) {
+            saveManifest();
+        }
+    }
+    
+    /**
+     * Copy the previous output, less the lines of stale subjects, and 
+     * append the triples of the recomputed subjects and new schemes.
+     */
+    private void patchOutput() {
+        
+        metrics.startPhase("write");
+        OutputStream outStream = openOutputFile();
+        long kept;
+        try {
+            kept = copyUnchangedLines(outStream);
+            Graph graph = model.getGraph();
+            StreamRDF writer = getOutputWriter(outStream);
+            writer.start();
+            List<Node> subjects = new ArrayList<Node>(scope);
+            subjects.addAll(newSchemes);
+            for (Node subject : subjects) {
+                ExtendedIterator<Triple> triples = 
+                        graph.find(subject, Node.ANY, Node.ANY);
+                try {
+                    while (triples.hasNext()) {
+                        writer.triple(triples.next());
+                    }
+                } finally {
+                    triples.close();
+                }
+            }
+            writer.finish();
+            closeOutputFile(outStream);
+        } finally {
+            abortOutputFile(outStream);
+        }
+        metrics.increment(TransformMetrics.TRIPLES_WRITTEN, kept);
+        metrics.endPhase();
+    }
+    
+    /**
+     * Copy the lines of the previous output that aren't about a stale 
+     * subject, and return how many were copied.
+     */
+    private long copyUnchangedLines(OutputStream outStream) {
+        
+        long kept = 0;
+        try {
+            BufferedReader reader = Files.newBufferedReader(
+                    getOutputFile().toPath(), StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("<") && staleSubjects.contains(
+                            line.substring(1, line.indexOf('>')))) {
+                        continue;
+                    }
+                    outStream.write((line + "\n").getBytes(
+                            StandardCharsets.UTF_8));
+                    kept++;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new TransformException("Can't patch " + getOutputFile(), e);
+        }
+        return kept;
+    }
+    
+    private void saveManifest() {
+        
+        manifest.getSchemes().putAll(conceptSchemes);
+        manifest.setOutputLength(getOutputFile().length());
+        try {
+            manifest.write(getManifestFile());
+        } catch (IOException e) {
+            LOGGER.warn("Can't write manifest " + getManifestFile() + ": " 
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * Streaming version of transformModel(). Makes two passes over the input file
+     * without ever loading it into a Model. Pass one collects the label of 
+     * each subject and builds the concepts map; pass two rewrites the 
+     * hasTopConcept, broader, narrower and related statements on the fly and
+     * writes every triple straight to the output. Memory use depends on the
+     * number of concepts, not the number of triples.
+     * 
+     * Since blank node labels aren't stable across two parses of the same 
+     * file, only subjects with URIs are typed as concepts in this mode.
+     * 
+     * In pipelined mode pass two is run by a TriplePipeline: statements are
+     * rewritten in batches by parallelism workers while the next batches 
+     * are parsed and the previous ones written. Schemes are minted as the 
+     * batches are written, in input order, so the output is the same.
+     */
+    @Override
+    protected void transformStream() {
+        
+        OutputStream outStream = openOutputFile();
+        SchemeRewriter schemeRewriter;
+        try {
+            StreamRDF writer = getOutputWriter(outStream);
+            writer.start();
             
-            String conceptLabel = stmt.getLiteral().getLexicalForm();                    
-            String conceptUri;
-            Resource concept;
+            // Pass one: build the concepts map
+            metrics.startPhase("loadConcepts");
+            ConceptCollector collector = new ConceptCollector(writer);
+            parseInputFile(collector);
+            loadConcepts(collector.labels, writer);
+            metrics.endPhase();
             
-            // This string value has already been seen
-            if (concepts.containsKey(conceptLabel)) {
-                conceptUri = concepts.get(conceptLabel);
-                concept = assertions.getResource(conceptUri);
-                assertions.add(subject, prop, concept);
+            // Pass two: rewrite statements and copy everything else through
+            metrics.startPhase("rewrite");
+            AtomicLongArray unresolved = new AtomicLongArray(3);
+            schemeRewriter = new SchemeRewriter(writer);
+            if (pipelined) {
+                rewriteInPipeline(
+                        collector.labels, schemeRewriter, unresolved);
+            } else {
+                parseInputFile(new ConceptRewriter(
+                        collector.labels, schemeRewriter, unresolved));
             }
+            countUnresolvedLabels("broader", unresolved.get(0));
+            countUnresolvedLabels("narrower", unresolved.get(1));
+            countUnresolvedLabels("related", unresolved.get(2));
+            finishResolution();
+            
+            writer.finish();
+            closeOutputFile(outStream);
+        } finally {
+            abortOutputFile(outStream);
+        }
+        metrics.endPhase();
+        
+        int schemes = schemeRewriter.conceptSchemes.size();
+        LOGGER.debug("Number of concepts: " + conceptCount);
+        LOGGER.debug("Number of schemes: " + schemes);
+        metrics.setCounter("concepts", concepts.size());
+        metrics.setCounter("conceptSchemes", schemes);
+    }
+    
+    /**
+     * Pipelined pass two. Each batch is rewritten by its own ConceptRewriter
+     * into a list; the labels map and the concepts are only read.
+     */
+    private void rewriteInPipeline(final Map<Node, Node> labels, 
+            StreamRDF writer, final AtomicLongArray unresolved) {
+        
+        TriplePipeline pipeline = 
+                new TriplePipeline(parallelism, pipelineBatchSize);
+        pipeline.run(new TriplePipeline.Source() {
+            @Override
+            public void parse(StreamRDF sink) {
+                parseInputFile(sink);
+            }
+        }, new TriplePipeline.BatchRewriter() {
+            @Override
+            public List<Triple> rewrite(List<Triple> batch) {
+                final List<Triple> out = new ArrayList<Triple>(batch.size());
+                ConceptRewriter rewriter = new ConceptRewriter(labels, 
+                        new StreamRDFBase() {
+                            @Override
+                            public void triple(Triple triple) {
+                                out.add(triple);
+                            }
+                        }, unresolved);
+                for (Triple triple : batch) {
+                    rewriter.triple(triple);
+                }
+                return out;
+            }
+        }, writer);
+        metrics.setCounter("pipelineBatches", pipeline.getBatches());
+    }
+    
+    /**
+     * Streaming version of loadConcepts(). Fills the concepts map from the 
+     * labels collected in pass one, and writes the rdf:type and rdfs:label
+     * assertions for each concept.
+     */
+    private void loadConcepts(Map<Node, Node> labels, StreamRDF writer) {
+        
+        ConceptDictionary dictionary = openConcepts();
+        Node conceptNode = SKOS.Concept.asNode();
+        
+        for (Map.Entry<Node, Node> entry : labels.entrySet()) {
+            conceptCount++;
+            Node subject = entry.getKey();
+            Node label = entry.getValue();
+            
+            writer.triple(Triple.create(subject, RDF.type.asNode(), 
+                    conceptNode));
             
-            /*
-            // New string value 
-            // Commenting out because this case doesn't appear in the data
+            String subjectUri = subject.getURI();
+            if (label == null) {
+                LOGGER.info("No skos:prefLabel or skos:notation for "
+                        + "resource " + subjectUri);
+                metrics.increment("conceptsWithoutLabel", 1);
             } else {
-                concept = createConcept(conceptLabel);
-                concepts.put(conceptLabel, concept.getURI());
+                if (dictionary != null) {
+                    dictionary.put(label.getLiteralLexicalForm(), subjectUri);
+                }
+                writer.triple(Triple.create(subject, RDFS.label.asNode(), 
+                        label));
+            }
+        }
+        reportSharedLabels(dictionary);
+        saveConcepts(dictionary);
+        conceptNodes = new Node[concepts.getIdLimit()];
+        createResolver();
+    }
+    
+    /**
+     * Pass one of the streaming transform: records the skos:prefLabel of 
+     * each URI subject, falling back to its skos:notation, exactly as 
+     * loadConcepts() does. Prefixes are forwarded to the output writer.
+     */
+    private class ConceptCollector extends StreamRDFBase {
+        
+        // Insertion order keeps concept output in input order. A null value 
+        // means no label has been seen (yet) for the subject.
+        private final Map<Node, Node> labels = new LinkedHashMap<Node, Node>();
+        
+        private final StreamRDF writer;
+        private final Node prefLabel = SKOS.prefLabel.asNode();
+        private final Node notation = SKOS.notation.asNode();
+        
+        ConceptCollector(StreamRDF writer) {
+            this.writer = writer;
+        }
+        
+        @Override
+        public void prefix(String prefix, String iri) {
+            writer.prefix(prefix, iri);
+        }
+        
+        @Override
+        public void triple(Triple triple) {
+            
+            Node subject = triple.getSubject();
+            if (!subject.isURI()) {
+                return;
+            }
+            
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+            
+            if (predicate.equals(prefLabel) && object.isLiteral()) {
+                labels.put(subject, object);
+            } else if (predicate.equals(notation) && object.isLiteral() 
+                    && labels.get(subject) == null) {
+                // Don't let a notation replace a prefLabel already seen; a 
+                // later prefLabel will replace this notation.
+                labels.put(subject, object);
+            } else if (!labels.containsKey(subject)) {
+                labels.put(subject, null);
+            }
+        }
+    }
+    
+    /**
+     * Pass two of the streaming transform: applies the changes made by 
+     * transformStringToThing() to each triple as it is parsed, and passes 
+     * all other triples through to the writer, which is a SchemeRewriter.
+     */
+    private class ConceptRewriter extends StreamRDFBase {
+        
+        private final Map<Node, Node> labels;
+        private final StreamRDF writer;
+        
+        private final Node broader = SKOS.broader.asNode();
+        private final Node narrower = SKOS.narrower.asNode();
+        private final Node related = SKOS.related.asNode();
+        private final Node conceptNode = SKOS.Concept.asNode();
+        
+        // Unresolved broader, narrower and related labels
+        private final AtomicLongArray unresolved;
+        
+        ConceptRewriter(Map<Node, Node> labels, StreamRDF writer, 
+                AtomicLongArray unresolved) {
+            this.labels = labels;
+            this.writer = writer;
+            this.unresolved = unresolved;
+        }
+        
+        @Override
+        public void triple(Triple triple) {
+            
+            Node subject = triple.getSubject();
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+            
+            if (object.isLiteral()) {
+                int index = predicate.equals(broader) ? 0 
+                        : predicate.equals(narrower) ? 1 
+                        : predicate.equals(related) ? 2 : -1;
+                if (index >= 0) {
+                    Node concept = resolveConcept(object);
+                    if (concept != null) {
+                        writer.triple(Triple.create(subject, predicate, 
+                                concept));
+                    } else {
+                        unresolved.incrementAndGet(index);
+                    }
+                    return;
+                }
+            }
+            
+            // Skip statements already written from pass one
+            if (labels.containsKey(subject)) {
+                if (predicate.equals(RDF.type.asNode()) 
+                        && object.equals(conceptNode)) {
+                    return;
+                }
+                if (predicate.equals(RDFS.label.asNode()) 
+                        && object.equals(labels.get(subject))) {
+                    return;
+                }
+            }
+            
+            writer.triple(triple);
+        }
+    }
+    
+    /**
+     * Applies the changes made by createConceptSchemes() on the way to the
+     * output writer: replaces each hasTopConcept literal with an inScheme 
+     * statement, writing the scheme the first time its label is seen.
+     */
+    private class SchemeRewriter extends StreamRDFWrapper {
+        
+        private final Node hasTopConcept = SKOS.hasTopConcept.asNode();
+        private final Node inScheme = SKOS.inScheme.asNode();
+        
+        // Map scheme labels to scheme URIs, as in createConceptSchemes()
+        private final Map<String, Node> conceptSchemes = 
+                new HashMap<String, Node>();
+        
+        SchemeRewriter(StreamRDF writer) {
+            super(writer);
+        }
+        
+        @Override
+        public void triple(Triple triple) {
+            
+            Node object = triple.getObject();
+            if (object.isLiteral() 
+                    && triple.getPredicate().equals(hasTopConcept)) {
+                super.triple(Triple.create(triple.getSubject(), inScheme, 
+                        getScheme(object.getLiteralLexicalForm())));
+            } else {
+                super.triple(triple);
+            }
+        }
+        
+        private Node getScheme(String schemeLabel) {
+            
+            Node scheme = conceptSchemes.get(schemeLabel);
+            if (scheme == null) {
+                scheme = NodeFactory.createURI(mintSchemeUri(schemeLabel));
+                conceptSchemes.put(schemeLabel, scheme);
+                Node label = NodeFactory.createLiteral(schemeLabel);
+                super.triple(Triple.create(scheme, RDF.type.asNode(), 
+                        SKOS.ConceptScheme.asNode()));
+                super.triple(Triple.create(scheme, RDFS.label.asNode(), 
+                        label));
+                super.triple(Triple.create(scheme, SKOS.prefLabel.asNode(), 
+                        label));
+            }
+            return scheme;
+        }
+    }
+    
+    /**
+     * Parallel version of transformStringToThing(). Each property is 
+     * rewritten by its own task on a ForkJoinPool, and each task splits its
+     * statements into chunks handled by further tasks. The model and 
+     * concepts map are only read while the tasks run; each task logs its 
+     * changes in its own ChangeLogs, which are merged at the end.
+     */
+    private void transformStringToThingInParallel(Property... props) {
+        
+        metrics.startPhase("transformStringToThing(parallel)");
+        
+        List<LabelResolutionTask> tasks = new ArrayList<LabelResolutionTask>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        for (Property prop : props) {
+            LabelResolutionTask task = 
+                    new LabelResolutionTask(prop.asNode());
+            tasks.add(task);
+            pool.execute(task);
+        }
+        
+        // Merge in property order so the result doesn't depend on thread 
+        // scheduling.
+        for (LabelResolutionTask task : tasks) {
+            task.join();
+            retractions.addAll(task.retractions);
+            assertions.addAll(task.assertions);
+            countUnresolvedLabels(
+                    task.predicate.getLocalName(), task.unresolved);
+        }
+        pool.shutdown();
+        metrics.endPhase();
+    }
+    
+    private class LabelResolutionTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Node predicate;
+        
+        // Null until the top-level task lists the statements for predicate
+        private List<Triple> triples;
+        private final int from;
+        private int to;
+        
+        private final ChangeLog assertions = new ChangeLog();
+        private final ChangeLog retractions = new ChangeLog();
+        private long unresolved;
+        
+        LabelResolutionTask(Node predicate) {
+            this(predicate, null, 0, 0);
+        }
+        
+        private LabelResolutionTask(Node predicate, List<Triple> triples, 
+                int from, int to) {
+            this.predicate = predicate;
+            this.triples = triples;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            
+            if (triples == null) {
+                triples = model.getGraph()
+                        .find(Node.ANY, predicate, Node.ANY).toList();
+                to = triples.size();
+            }
+            
+            if (to - from > PARALLEL_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                LabelResolutionTask left = new LabelResolutionTask(
+                        predicate, triples, from, middle);
+                LabelResolutionTask right = new LabelResolutionTask(
+                        predicate, triples, middle, to);
+                invokeAll(left, right);
+                for (LabelResolutionTask task : new LabelResolutionTask[] 
+                        { left, right }) {
+                    retractions.addAll(task.retractions);
+                    assertions.addAll(task.assertions);
+                    unresolved += task.unresolved;
+                }
+                return;
+            }
+            
+            for (int i = from; i < to; i++) {
+                Triple triple = triples.get(i);
+                if (!triple.getObject().isLiteral()) {
+                    continue;
+                }
+                
+                // Remove the faulty statement
+                retractions.add(triple);
+                
+                Node concept = resolveConcept(triple.getObject());
+                if (concept != null) {
+                    assertions.add(Triple.create(triple.getSubject(), 
+                            predicate, concept));
+                } else {
+                    unresolved++;
+                }
             }
-            assertions.add(subject, prop, concept);
-            */
-
         }
-       
     }
     
     /*
     private Resource createConcept(String conceptLabel) { 
         
-        Resource concept = assertions.createResource(mintConceptUri());
+        Resource concept = ResourceFactory.createResource(
+                mintConceptUri(conceptLabel));
         LOGGER.debug("Created concept with URI " + concept.getURI());
-        assertions.add(concept, RDF.type, conceptClass);
+        assertions.add(concept, RDF.type, SKOS.Concept);
         assertions.add(concept, RDFS.label, conceptLabel);
-        assertions.add(concept, prefLabelProp, conceptLabel);
+        assertions.add(concept, SKOS.prefLabel, conceptLabel);
         return concept;
     }
     
-    private String mintConceptUri() {  
-        conceptNum++;
+    private String mintConceptUri(String conceptLabel) {  
         // ASK JASON: Or just use RBMS_NS? Or put concepts in RBMS_NS + 
         // "concept/" namespace too?
-        return RBMS_NS + conceptNum;
+        return uriMinter.mint(RBMS_NS, conceptLabel);
     }
     */
     
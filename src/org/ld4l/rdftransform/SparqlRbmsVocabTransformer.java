@@ -0,0 +1,322 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.graph.GraphWrapper;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.update.UpdateAction;
+import org.apache.jena.vocabulary.SKOS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Does the same job as SkosRbmsVocabTransformer, but with each rewrite
+ * expressed as a SPARQL Update executed by ARQ instead of a Java loop.
+ *
+ * The updates run against a wrapper around the model that logs the inserted
+ * and deleted triples in assertions and retractions instead of applying
+ * them. So every update sees the original model, as the Java loops do, and
+ * the changes are applied at the end as for any other transformer,
+ * including against a TDB-backed model.
+ *
+ * The output is the same as SkosRbmsVocabTransformer's: a label shared by
+ * several concepts resolves to the first in ConceptDictionary's concept
+ * order in both, and both mint concept scheme URIs from the scheme label
+ * with a UriMinter.
+ */
+public class SparqlRbmsVocabTransformer extends RdfDataTransformer {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(SparqlRbmsVocabTransformer.class);
+
+    private static final String RBMS_NS = "http://rbms.info/vocab/";
+    private static final String RBMS_SCHEME_NS = RBMS_NS + "scheme/";
+
+    private static final String PREFIXES =
+            "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
+            + "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n"
+            + "PREFIX skos: <" + SKOS.getURI() + ">\n";
+
+    // Every subject is a concept, labelled with its skos:prefLabel or,
+    // failing that, its skos:notation.
+    private static final String LOAD_CONCEPTS = PREFIXES
+            + "INSERT { ?s a skos:Concept } \n"
+            + "WHERE { SELECT DISTINCT ?s { ?s ?p ?o } } ;\n"
+            + "INSERT { ?s rdfs:label ?label } \n"
+            + "WHERE { ?s skos:prefLabel ?label } ;\n"
+            + "INSERT { ?s rdfs:label ?label } \n"
+            + "WHERE { ?s skos:notation ?label \n"
+            + "    FILTER NOT EXISTS { ?s skos:prefLabel ?any } }";
+
+    // Pattern binding ?c to the concepts labelled ?label, if any.
+    private static final String CONCEPT_WITH_LABEL =
+            "OPTIONAL { \n"
+            + "    { ?c skos:prefLabel ?label } \n"
+            + "    UNION \n"
+            + "    { ?c skos:notation ?label \n"
+            + "      FILTER NOT EXISTS { ?c skos:prefLabel ?any } } }\n";
+
+    // Binds ?key to a string that sorts in ConceptDictionary's concept 
+    // order: "0" and the zero-padded number for an RBMS URI ending in a
+    // number, else "1" and the URI. Blank nodes get no key.
+    private static final String CONCEPT_KEY =
+            "BIND (STRAFTER(STR(?c), \"" + RBMS_NS + "\") AS ?suffix) \n"
+            + "BIND (IF(isIRI(?c) && STRSTARTS(STR(?c), \"" + RBMS_NS 
+            + "\") && REGEX(?suffix, \"^(0|[1-9][0-9]{0,17})$\"), \n"
+            + "    CONCAT(\"0\", SUBSTR(CONCAT(\"000000000000000000\", "
+            + "?suffix), STRLEN(?suffix) + 1)), \n"
+            + "    IF(isIRI(?c), CONCAT(\"1\", STR(?c)), ?unbound)) \n"
+            + "    AS ?key) \n";
+
+    // Replace literal values of %1$s by the concept with that label, the 
+    // first in concept order if several share it. Values that match no 
+    // concept are deleted.
+    private static final String STRING_TO_THING = PREFIXES
+            + "DELETE { ?s %1$s ?label } \n"
+            + "INSERT { ?s %1$s ?concept } \n"
+            + "WHERE { \n"
+            + "  { SELECT ?s ?label (MIN(?key) AS ?first) { \n"
+            + "      ?s %1$s ?label FILTER isLiteral(?label) \n"
+            + "      " + CONCEPT_WITH_LABEL
+            + "      " + CONCEPT_KEY
+            + "  } GROUP BY ?s ?label } \n"
+            + "  BIND (IF(STRSTARTS(?first, \"0\"), \n"
+            + "      IRI(CONCAT(\"" + RBMS_NS + "\", "
+            + "REPLACE(SUBSTR(?first, 2), \"^0+([0-9])\", \"$1\"))), \n"
+            + "      IRI(SUBSTR(?first, 2))) AS ?concept) }";
+
+    // Labels shared by several concepts with URIs, compared by lexical 
+    // form as SkosRbmsVocabTransformer compares them.
+    private static final String SHARED_LABELS = PREFIXES
+            + "SELECT ?name { \n"
+            + "  { ?c skos:prefLabel ?label } \n"
+            + "  UNION \n"
+            + "  { ?c skos:notation ?label \n"
+            + "    FILTER NOT EXISTS { ?c skos:prefLabel ?any } } \n"
+            + "  FILTER isIRI(?c) \n"
+            + "} GROUP BY (STR(?label) AS ?name) \n"
+            + "HAVING (COUNT(DISTINCT ?c) > 1) \n"
+            + "ORDER BY ?name";
+
+    private static final String COUNT_UNRESOLVED = PREFIXES
+            + "SELECT (COUNT(*) AS ?count) { \n"
+            + "  ?s %1$s ?label FILTER isLiteral(?label) \n"
+            + "  FILTER NOT EXISTS { \n"
+            + "    { ?c skos:prefLabel ?label } \n"
+            + "    UNION \n"
+            + "    { ?c skos:notation ?label \n"
+            + "      FILTER NOT EXISTS { ?c skos:prefLabel ?any } } } }";
+
+    private static final String SCHEME_LABELS = PREFIXES
+            + "SELECT DISTINCT (STR(?label) AS ?name) { \n"
+            + "  ?c skos:hasTopConcept ?label FILTER isLiteral(?label) }";
+
+    // Replace skos:hasTopConcept literals by skos:inScheme links to concept
+    // schemes; VALUES (%1$s) maps each label to its scheme URI.
+    private static final String CREATE_CONCEPT_SCHEMES = PREFIXES
+            + "DELETE { ?c skos:hasTopConcept ?label } \n"
+            + "INSERT { ?c skos:inScheme ?scheme . \n"
+            + "    ?scheme a skos:ConceptScheme ; \n"
+            + "        rdfs:label ?name ; \n"
+            + "        skos:prefLabel ?name } \n"
+            + "WHERE { \n"
+            + "  ?c skos:hasTopConcept ?label FILTER isLiteral(?label) \n"
+            + "  BIND (STR(?label) AS ?name) \n"
+            + "  VALUES (?name ?scheme) { %1$s } }";
+
+    /**
+     * Registers this transformer under the name skos-rbms-sparql.
+     */
+    public static class Factory implements TransformerFactory {
+
+        @Override
+        public String getName() {
+            return "skos-rbms-sparql";
+        }
+
+        /**
+         * SPARQL Update needs the whole model, so streaming mode isn't
+         * supported.
+         */
+        @Override
+        public RdfDataTransformer create(File infile, File outfile,
+                RDFFormat format, boolean streaming) {
+            if (streaming) {
+                throw new UnsupportedOperationException(
+                        "skos-rbms-sparql doesn't support streaming mode");
+            }
+            return new SparqlRbmsVocabTransformer(infile, outfile, format);
+        }
+    }
+
+    public SparqlRbmsVocabTransformer(File infile, File outfile,
+            RDFFormat format) {
+        super(infile, outfile, format);
+        outputPrefixes.put("rbms", RBMS_NS);
+    }
+
+    /**
+     * The concept labels are matched by the updates themselves, so this
+     * transformer doesn't keep a label index.
+     */
+    @Override
+    public void setLabelIndex(boolean labelIndex) {
+        if (labelIndex) {
+            throw new UnsupportedOperationException(
+                    "skos-rbms-sparql can't keep a label index");
+        }
+    }
+
+    /**
+     * The updates join on exact labels, so only exact matching is
+     * supported.
+     */
+    @Override
+    public void setLabelMatching(LabelResolver.Matching labelMatching) {
+        if (labelMatching != LabelResolver.Matching.EXACT) {
+            throw new UnsupportedOperationException(
+                    "skos-rbms-sparql only supports exact label matching");
+        }
+    }
+
+    /**
+     * Each run rewrites the whole model, so incremental mode isn't
+     * supported.
+     */
+    @Override
+    public void setIncremental(boolean incremental) {
+        if (incremental) {
+            throw new UnsupportedOperationException(
+                    "skos-rbms-sparql can't run in incremental mode");
+        }
+    }
+
+    @Override
+    protected void transformModel() {
+
+        Graph graph = new ChangeLoggingGraph(model.getGraph());
+
+        metrics.startPhase("loadConcepts");
+        update(LOAD_CONCEPTS, graph);
+        countSharedLabels();
+        metrics.endPhase();
+
+        metrics.startPhase("createConceptSchemes");
+        int schemes = createConceptSchemes(graph);
+        metrics.endPhase();
+
+        transformStringToThing("broader", graph);
+        transformStringToThing("narrower", graph);
+        transformStringToThing("related", graph);
+
+        LOGGER.debug("Number of schemes: " + schemes);
+        metrics.setCounter("conceptSchemes", schemes);
+    }
+
+    private void countSharedLabels() {
+
+        int shared = 0;
+        QueryExecution qexec =
+                QueryExecutionFactory.create(SHARED_LABELS, model);
+        try {
+            ResultSet results = qexec.execSelect();
+            while (results.hasNext()) {
+                LOGGER.info("Label \"" 
+                        + results.next().getLiteral("name").getString()
+                        + "\" is shared by several concepts");
+                shared++;
+            }
+        } finally {
+            qexec.close();
+        }
+        metrics.setCounter("sharedLabels", shared);
+    }
+
+    private int createConceptSchemes(Graph graph) {
+
+        List<String> names = new ArrayList<String>();
+        QueryExecution qexec =
+                QueryExecutionFactory.create(SCHEME_LABELS, model);
+        try {
+            ResultSet results = qexec.execSelect();
+            while (results.hasNext()) {
+                names.add(results.next().getLiteral("name").getString());
+            }
+        } finally {
+            qexec.close();
+        }
+        Collections.sort(names);
+
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            values.append("(")
+                .append(FmtUtils.stringForNode(
+                        NodeFactory.createLiteral(names.get(i))))
+                .append(" <")
+                .append(uriMinter.mint(RBMS_SCHEME_NS, names.get(i)))
+                .append(">) ");
+        }
+        update(String.format(CREATE_CONCEPT_SCHEMES, values), graph);
+        return names.size();
+    }
+
+    private void transformStringToThing(String propName, Graph graph) {
+
+        metrics.startPhase("transformStringToThing(" + propName + ")");
+        String prop = "skos:" + propName;
+
+        long unresolved = 0;
+        QueryExecution qexec = QueryExecutionFactory.create(
+                String.format(COUNT_UNRESOLVED, prop), model);
+        try {
+            QuerySolution result = qexec.execSelect().next();
+            unresolved = result.getLiteral("count").getLong();
+        } finally {
+            qexec.close();
+        }
+        metrics.increment(TransformMetrics.UNRESOLVED_LABELS, unresolved);
+        metrics.increment(TransformMetrics.UNRESOLVED_LABELS + "." + propName,
+                unresolved);
+
+        update(String.format(STRING_TO_THING, prop), graph);
+        metrics.endPhase();
+    }
+
+    private static void update(String update, Graph graph) {
+        UpdateAction.parseExecute(
+                update, DatasetGraphFactory.createOneGraph(graph));
+    }
+
+    /**
+     * Graph that reads from the model but logs additions and deletions
+     * instead of making them.
+     */
+    private class ChangeLoggingGraph extends GraphWrapper {
+
+        ChangeLoggingGraph(Graph graph) {
+            super(graph);
+        }
+
+        @Override
+        public void add(Triple triple) {
+            assertions.add(triple);
+        }
+
+        @Override
+        public void delete(Triple triple) {
+            retractions.add(triple);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.ld4l.rdftransform;
+
+/**
+ * Thrown when a transformer can't read its input or write its output.
+ * Unchecked, like the parse errors Jena throws, so that RdfTransform can
+ * exit on it and BatchTransformer can record the file as failed and carry
+ * on with the rest of the batch.
+ */
+public class TransformException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransformException(String message, Throwable cause) {
+        super(message + ": " + cause.getMessage(), cause);
+    }
+}
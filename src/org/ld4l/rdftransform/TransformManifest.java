@@ -0,0 +1,172 @@
+package org.ld4l.rdftransform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * What an incremental transform needs to know about the previous run: a
+ * fingerprint and label for each subject of the input, the concept schemes
+ * minted so far, and the length of the output it wrote. Subjects are kept
+ * in the order they were met.
+ */
+public class TransformManifest {
+
+    private static final int MAGIC = 0x4c44344d;
+    private static final int VERSION = 1;
+
+    /**
+     * A subject's fingerprint and its label (null if it has none).
+     */
+    public static class Subject {
+        public final long fingerprint;
+        public final String label;
+
+        Subject(long fingerprint, String label) {
+            this.fingerprint = fingerprint;
+            this.label = label;
+        }
+    }
+
+    private final Map<String, Subject> subjects =
+            new LinkedHashMap<String, Subject>();
+    private final Map<String, String> schemes =
+            new LinkedHashMap<String, String>();
+    private long outputLength;
+
+    public void putSubject(String uri, long fingerprint, String label) {
+        subjects.put(uri, new Subject(fingerprint, label));
+    }
+
+    public Map<String, Subject> getSubjects() {
+        return subjects;
+    }
+
+    /**
+     * Concept scheme URIs by label.
+     */
+    public Map<String, String> getSchemes() {
+        return schemes;
+    }
+
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    public void setOutputLength(long outputLength) {
+        this.outputLength = outputLength;
+    }
+
+    /**
+     * Return an order-independent 64-bit fingerprint of the triples with
+     * the specified subject: the sum of an FNV-1a hash of each predicate
+     * and object written as N-Triples terms.
+     */
+    public static long fingerprint(Graph graph, Node subject) {
+        long fingerprint = 0;
+        ExtendedIterator<Triple> triples =
+                graph.find(subject, Node.ANY, Node.ANY);
+        try {
+            while (triples.hasNext()) {
+                Triple triple = triples.next();
+                long hash = 0xcbf29ce484222325L;
+                hash = hash(hash, FmtUtils.stringForNode(
+                        triple.getPredicate()));
+                hash = hash(hash, " ");
+                hash = hash(hash, FmtUtils.stringForNode(
+                        triple.getObject()));
+                fingerprint += hash;
+            }
+        } finally {
+            triples.close();
+        }
+        return fingerprint;
+    }
+
+    private static long hash(long hash, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static TransformManifest read(File file) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a transform manifest: " + file);
+            }
+            TransformManifest manifest = new TransformManifest();
+            manifest.outputLength = in.readLong();
+            int schemeCount = in.readInt();
+            for (int i = 0; i < schemeCount; i++) {
+                String label = in.readUTF();
+                manifest.schemes.put(label, in.readUTF());
+            }
+            int subjectCount = in.readInt();
+            for (int i = 0; i < subjectCount; i++) {
+                String uri = in.readUTF();
+                long fingerprint = in.readLong();
+                String label = in.readBoolean() ? in.readUTF() : null;
+                manifest.putSubject(uri, fingerprint, label);
+            }
+            return manifest;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the manifest, replacing the file atomically.
+     */
+    public void write(File file) throws IOException {
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(atomicFile.getTempFile()),
+                            1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(outputLength);
+                out.writeInt(schemes.size());
+                for (Map.Entry<String, String> entry : schemes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+                out.writeInt(subjects.size());
+                for (Map.Entry<String, Subject> entry : subjects.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().fingerprint);
+                    out.writeBoolean(entry.getValue().label != null);
+                    if (entry.getValue().label != null) {
+                        out.writeUTF(entry.getValue().label);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            atomicFile.commit();
+        } finally {
+            atomicFile.abort();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Timings and counters for one transformer run. Each phase records wall
+ * time and process CPU time (so that work done on other threads is
+ * included); counters record triples read, retracted, asserted and written,
+ * unresolved labels, etc. The metrics can be written as a JSON report and
+ * exposed as an MBean.
+ *
+ * CPU time and peak heap are process-wide, and are labelled so in the
+ * report: when a batch transforms several files at once, each file's 
+ * figures include the work and heap of the others. The peak heap is reset
+ * once per process, by resetPeakHeap(), not per run.
+ */
+public class TransformMetrics implements TransformMetricsMBean {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(TransformMetrics.class);
+
+    // Standard counter names
+    public static final String TRIPLES_READ = "triplesRead";
+    public static final String TRIPLES_RETRACTED = "triplesRetracted";
+    public static final String TRIPLES_ASSERTED = "triplesAsserted";
+    public static final String TRIPLES_WRITTEN = "triplesWritten";
+    public static final String UNRESOLVED_LABELS = "unresolvedLabels";
+
+    private static class Phase {
+        private long wallNanos;
+        private long cpuNanos;
+    }
+
+    private final Map<String, Phase> phases =
+            new LinkedHashMap<String, Phase>();
+    private final Map<String, Long> counters =
+            new LinkedHashMap<String, Long>();
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private String currentPhase;
+    private long phaseStartWall;
+    private long phaseStartCpu;
+
+    /**
+     * Reset the peak usage of the heap memory pools, which is JVM-wide 
+     * state. Called once at the start of the process rather than per run,
+     * so that runs in progress on other threads keep their peaks.
+     */
+    public static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Start timing a phase. Phases don't nest: starting a new phase ends
+     * the current one. Timing the same phase twice adds up the times.
+     */
+    public synchronized void startPhase(String phase) {
+        if (currentPhase != null) {
+            endPhase();
+        }
+        currentPhase = phase;
+        phaseStartCpu = processCpuNanos();
+        phaseStartWall = System.nanoTime();
+    }
+
+    public synchronized void endPhase() {
+        if (currentPhase == null) {
+            return;
+        }
+        long wall = System.nanoTime() - phaseStartWall;
+        long cpu = processCpuNanos() - phaseStartCpu;
+        Phase phase = phases.get(currentPhase);
+        if (phase == null) {
+            phase = new Phase();
+            phases.put(currentPhase, phase);
+        }
+        phase.wallNanos += wall;
+        if (phase.cpuNanos >= 0) {
+            phase.cpuNanos += cpu;
+        }
+        LOGGER.debug("Phase " + currentPhase + " took "
+                + (wall / 1000000) + " ms");
+        currentPhase = null;
+    }
+
+    public synchronized void increment(String counter, long amount) {
+        Long value = counters.get(counter);
+        counters.put(counter, value == null ? amount : value + amount);
+    }
+
+    public synchronized void setCounter(String counter, long value) {
+        counters.put(counter, value);
+    }
+
+    public synchronized long getCounter(String counter) {
+        Long value = counters.get(counter);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Add the phase wall times and counters of another run to this one. 
+     * Used to build the aggregate report for a batch. CPU times aren't 
+     * added, since runs that overlapped would each include the others' 
+     * process CPU time; the added phases report theirs as -1.
+     */
+    public synchronized void add(TransformMetrics other) {
+        synchronized (other) {
+            for (Map.Entry<String, Phase> entry : other.phases.entrySet()) {
+                Phase phase = phases.get(entry.getKey());
+                if (phase == null) {
+                    phase = new Phase();
+                    phases.put(entry.getKey(), phase);
+                }
+                phase.wallNanos += entry.getValue().wallNanos;
+                phase.cpuNanos = -1;
+            }
+            for (Map.Entry<String, Long> entry : other.counters.entrySet()) {
+                increment(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Total wall time recorded for the phase, or 0 if it never ran.
+     */
+    public synchronized long getPhaseWallNanos(String phase) {
+        Phase recorded = phases.get(phase);
+        return recorded == null ? 0 : recorded.wallNanos;
+    }
+
+    @Override
+    public synchronized String getCurrentPhase() {
+        return currentPhase;
+    }
+
+    @Override
+    public long getTriplesRead() {
+        return getCounter(TRIPLES_READ);
+    }
+
+    @Override
+    public long getTriplesRetracted() {
+        return getCounter(TRIPLES_RETRACTED);
+    }
+
+    @Override
+    public long getTriplesAsserted() {
+        return getCounter(TRIPLES_ASSERTED);
+    }
+
+    @Override
+    public long getTriplesWritten() {
+        return getCounter(TRIPLES_WRITTEN);
+    }
+
+    @Override
+    public long getUnresolvedLabels() {
+        return getCounter(UNRESOLVED_LABELS);
+    }
+
+    /**
+     * Sum of the peak usage of each heap memory pool since resetPeakHeap(),
+     * or the start of the process. The pools may not all have peaked at the
+     * same time, so this is an upper bound on the actual peak heap.
+     */
+    @Override
+    public long getProcessPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    @Override
+    public synchronized String getReport() {
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startTime\": ").append(startMillis).append(",\n");
+        json.append("  \"wallMillis\": ")
+            .append((System.nanoTime() - startNanos) / 1000000)
+            .append(",\n");
+        json.append("  \"processPeakHeapBytes\": ")
+            .append(getProcessPeakHeapBytes())
+            .append(",\n");
+
+        json.append("  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            Phase phase = entry.getValue();
+            json.append(separator)
+                .append("    ").append(quote(entry.getKey()))
+                .append(": { \"wallMillis\": ")
+                .append(phase.wallNanos / 1000000)
+                .append(", \"processCpuMillis\": ")
+                .append(phase.cpuNanos < 0 ? -1 : phase.cpuNanos / 1000000)
+                .append(" }");
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            json.append(separator)
+                .append("    ").append(quote(entry.getKey()))
+                .append(": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  }\n");
+
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Write the JSON report to the specified file, replacing it 
+     * atomically. A failure is logged rather than thrown, as the run itself
+     * has succeeded.
+     */
+    public void writeReport(File file) {
+        endPhase();
+        try {
+            AtomicFile atomicFile = new AtomicFile(file);
+            try {
+                Writer writer = Files.newBufferedWriter(
+                        atomicFile.getTempFile().toPath(), 
+                        StandardCharsets.UTF_8);
+                try {
+                    writer.write(getReport());
+                } finally {
+                    writer.close();
+                }
+                atomicFile.commit();
+            } finally {
+                atomicFile.abort();
+            }
+            LOGGER.info("Wrote run report to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.warn("Can't write run report " + file + ": " 
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, so that a run can
+     * be watched from a JMX console.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("org.ld4l.rdftransform:type=TransformMetrics"));
+        } catch (JMException e) {
+            LOGGER.warn("Couldn't register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static String quote(String string) {
+        return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"")
+                + "\"";
+    }
+}
@@ -0,0 +1,26 @@
+package org.ld4l.rdftransform;
+
+/**
+ * JMX view of TransformMetrics.
+ */
+public interface TransformMetricsMBean {
+
+    String getCurrentPhase();
+
+    long getTriplesRead();
+
+    long getTriplesRetracted();
+
+    long getTriplesAsserted();
+
+    long getTriplesWritten();
+
+    long getUnresolvedLabels();
+
+    long getProcessPeakHeapBytes();
+
+    /**
+     * The full run report, in JSON.
+     */
+    String getReport();
+}
@@ -0,0 +1,114 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.riot.RDFFormat;
+
+/**
+ * Runs several transformers over the same in-memory model, so the input is
+ * parsed once and the output serialized once however many transformers
+ * there are. Each member sees the changes made by the members before it.
+ */
+public class TransformerChain extends RdfDataTransformer {
+
+    private final List<RdfDataTransformer> members = 
+            new ArrayList<RdfDataTransformer>();
+
+    public TransformerChain(File infile, File outfile, RDFFormat format) {
+        super(infile, outfile, format);
+    }
+
+    /**
+     * Create the transformer for the specified factories: the single 
+     * transformer itself if there is only one, otherwise a chain. 
+     */
+    public static RdfDataTransformer create(
+            List<TransformerFactory> factories, File infile, File outfile,
+            RDFFormat format, boolean streaming) {
+        
+        if (factories.size() == 1) {
+            return factories.get(0).create(
+                    infile, outfile, format, streaming);
+        }
+        TransformerChain chain = 
+                new TransformerChain(infile, outfile, format);
+        for (TransformerFactory factory : factories) {
+            chain.add(factory.create(infile, outfile, format, false));
+        }
+        return chain;
+    }
+
+    /**
+     * Add a transformer to the end of the chain. Its own input and output
+     * files are ignored, but its output prefixes are declared.
+     */
+    public void add(RdfDataTransformer member) {
+        members.add(member);
+        outputPrefixes.putAll(member.outputPrefixes);
+    }
+
+    /**
+     * Incremental mode patches the output of a single transformer, so a 
+     * chain doesn't support it.
+     */
+    @Override
+    public void setIncremental(boolean incremental) {
+        if (incremental) {
+            throw new UnsupportedOperationException(
+                    "A chain of transformers can't run in incremental mode");
+        }
+    }
+
+    /**
+     * A label index is keyed by the input file, but members after the 
+     * first see the model as changed by the members before them, so a 
+     * chain doesn't support it.
+     */
+    @Override
+    public void setLabelIndex(boolean labelIndex) {
+        if (labelIndex) {
+            throw new UnsupportedOperationException(
+                    "A chain of transformers can't keep a label index");
+        }
+    }
+
+    /**
+     * Checked against the members now, so that one that doesn't support
+     * the matching fails before the input is read.
+     */
+    @Override
+    public void setLabelMatching(LabelResolver.Matching labelMatching) {
+        for (RdfDataTransformer member : members) {
+            member.setLabelMatching(labelMatching);
+        }
+        super.setLabelMatching(labelMatching);
+    }
+
+    @Override
+    protected void transformModel() {
+
+        for (int i = 0; i < members.size(); i++) {
+            RdfDataTransformer member = members.get(i);
+            member.model = model;
+            member.metrics = metrics;
+            member.parallelism = parallelism;
+            member.labelMatching = labelMatching;
+            member.uriMinter = uriMinter;
+            if (needsDistinctAssertions()) {
+                member.assertions = new ChangeLog(true);
+            }
+            member.transformModel();
+            
+            // Apply each member's changes through the chain, which owns 
+            // the model (and its TDB dataset, if any). The last member's 
+            // changes are applied by writeNewModel().
+            assertions = member.assertions;
+            retractions = member.retractions;
+            if (i < members.size() - 1) {
+                applyModelChanges();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+
+import org.apache.jena.riot.RDFFormat;
+
+/**
+ * Creates transformers of one kind. Implementations are found with
+ * java.util.ServiceLoader, so a transformer becomes available on the command
+ * line by listing its factory in
+ * META-INF/services/org.ld4l.rdftransform.TransformerFactory.
+ */
+public interface TransformerFactory {
+
+    /**
+     * The name used to select the transformer on the command line.
+     */
+    String getName();
+
+    /**
+     * Throws UnsupportedOperationException if streaming is requested and
+     * the transformer doesn't support it.
+     */
+    RdfDataTransformer create(File infile, File outfile, RDFFormat format,
+            boolean streaming);
+}
@@ -0,0 +1,45 @@
+package org.ld4l.rdftransform;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The transformer factories registered with ServiceLoader, by name.
+ */
+public class TransformerRegistry {
+
+    private static final Logger LOGGER = 
+            LogManager.getLogger(TransformerRegistry.class);
+
+    private final Map<String, TransformerFactory> factories =
+            new TreeMap<String, TransformerFactory>();
+
+    public TransformerRegistry() {
+        for (TransformerFactory factory 
+                : ServiceLoader.load(TransformerFactory.class)) {
+            if (factories.containsKey(factory.getName())) {
+                LOGGER.warn("Ignoring duplicate transformer '" 
+                        + factory.getName() + "' from " 
+                        + factory.getClass().getName());
+                continue;
+            }
+            factories.put(factory.getName(), factory);
+        }
+    }
+
+    /**
+     * Return the factory registered under the specified name, or null.
+     */
+    public TransformerFactory get(String name) {
+        return factories.get(name);
+    }
+
+    public Set<String> getNames() {
+        return factories.keySet();
+    }
+}
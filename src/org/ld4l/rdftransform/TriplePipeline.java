@@ -0,0 +1,208 @@
+package org.ld4l.rdftransform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+/**
+ * Overlaps parsing, rewriting and writing a stream of triples. A parser
+ * thread cuts the input into batches of batchSize triples, each batch is
+ * rewritten by a pool of worker threads, and the calling thread sends the
+ * rewritten batches to the output in input order, so the output is the
+ * same as rewriting the triples one at a time.
+ *
+ * The queue between the parser and the writer holds at most twice as many
+ * batches as there are workers, so a slow writer holds back the parser
+ * rather than filling the heap with parsed triples.
+ */
+public class TriplePipeline {
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    /**
+     * The input, parsed on the parser thread.
+     */
+    public interface Source {
+        void parse(StreamRDF sink);
+    }
+
+    /**
+     * Rewrites a batch of triples. Called on several worker threads at once.
+     */
+    public interface BatchRewriter {
+        List<Triple> rewrite(List<Triple> batch);
+    }
+
+    // Queued after the last batch
+    private static final Future<List<Triple>> END =
+            new FutureTask<List<Triple>>(new Callable<List<Triple>>() {
+                @Override
+                public List<Triple> call() {
+                    return null;
+                }
+            });
+
+    private final int workers;
+    private final int batchSize;
+    private long batches;
+
+    public TriplePipeline(int workers, int batchSize) {
+        this.workers = workers;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parse the source, rewrite it and send the result to the output,
+     * returning when the last batch has been sent. The output's start() and
+     * finish() are left to the caller. Prefixes are not passed on.
+     */
+    public void run(final Source source, final BatchRewriter rewriter,
+            StreamRDF output) {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final BlockingQueue<Future<List<Triple>>> queue =
+                new ArrayBlockingQueue<Future<List<Triple>>>(workers * 2);
+        final Throwable[] parseError = new Throwable[1];
+
+        Thread parser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Batcher batcher = new Batcher(executor, rewriter, queue);
+                    source.parse(batcher);
+                    batcher.flush();
+                } catch (Throwable e) {
+                    parseError[0] = e;
+                } finally {
+                    putUninterruptibly(queue, END);
+                }
+            }
+        }, "pipeline-parser");
+        parser.start();
+
+        try {
+            Future<List<Triple>> batch;
+            while ((batch = queue.take()) != END) {
+                for (Triple triple : batch.get()) {
+                    output.triple(triple);
+                }
+                batches++;
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransformException("Pipeline interrupted", e);
+        } catch (ExecutionException e) {
+            throw failure("Error rewriting batch", e.getCause());
+        } finally {
+            // Unblocks the parser if the writer failed
+            parser.interrupt();
+            queue.clear();
+            executor.shutdownNow();
+        }
+        if (parseError[0] != null) {
+            throw failure("Error parsing input", parseError[0]);
+        }
+    }
+
+    /**
+     * Wrap a failure on another thread in a TransformException, so that it
+     * is reported like any other failed transform. Errors such as 
+     * OutOfMemoryError are rethrown as they are.
+     */
+    private static TransformException failure(String message, 
+            Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new TransformException(message, cause);
+    }
+
+    /**
+     * Number of batches written by the last run().
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    private static void putUninterruptibly(
+            BlockingQueue<Future<List<Triple>>> queue,
+            Future<List<Triple>> batch) {
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                // The writer has given up and cleared the queue
+                queue.clear();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Collects parsed triples into batches, submits each to the workers and
+     * queues its result. Blocks the parser when the queue is full.
+     */
+    private class Batcher extends StreamRDFBase {
+
+        private final ExecutorService executor;
+        private final BatchRewriter rewriter;
+        private final BlockingQueue<Future<List<Triple>>> queue;
+        private List<Triple> batch = new ArrayList<Triple>(batchSize);
+
+        Batcher(ExecutorService executor, BatchRewriter rewriter,
+                BlockingQueue<Future<List<Triple>>> queue) {
+            this.executor = executor;
+            this.rewriter = rewriter;
+            this.queue = queue;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            batch.add(triple);
+            if (batch.size() == batchSize) {
+                submit();
+            }
+        }
+
+        void flush() {
+            if (!batch.isEmpty()) {
+                submit();
+            }
+        }
+
+        private void submit() {
+
+            final List<Triple> triples = batch;
+            batch = new ArrayList<Triple>(batchSize);
+            try {
+                queue.put(executor.submit(new Callable<List<Triple>>() {
+                    @Override
+                    public List<Triple> call() {
+                        return rewriter.rewrite(triples);
+                    }
+                }));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransformException("Pipeline stopped", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.ld4l.rdftransform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Mints URIs from labels rather than from a counter, so that reruns, model
+ * and streaming modes, and parallel workers all give a label the same URI.
+ * The local name is the first 64 bits of the SHA-256 hash of the label, in
+ * hex.
+ *
+ * Each URI minted is checked against a registry of the URIs minted so far,
+ * which can be read from and saved to a file so that it persists across
+ * runs. If the URI is registered to another label, the label is hashed
+ * again with a counter appended until a free URI turns up, so a label keeps
+ * the URI it was first given. The registry is a ConcurrentHashMap, so
+ * threads minting at once only contend within a lock stripe. Only two new
+ * labels whose hashes collide in the same run can get URIs that depend on
+ * the order they are minted in.
+ */
+public class UriMinter {
+
+    private static final Logger LOGGER = LogManager.getLogger(UriMinter.class);
+
+    private static final int MAGIC = 0x4c445552;
+    private static final int VERSION = 1;
+
+    // MessageDigest isn't thread-safe
+    private static final ThreadLocal<MessageDigest> DIGEST =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA-256");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+
+    // Labels by URI
+    private final ConcurrentMap<String, String> registry =
+            new ConcurrentHashMap<String, String>();
+    private final AtomicLong minted = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+
+    /**
+     * Return the URI in namespace for label, registering it if it is new.
+     */
+    public String mint(String namespace, String label) {
+
+        for (int attempt = 0; ; attempt++) {
+            String uri = namespace + localName(label, attempt);
+            String registered = registry.putIfAbsent(uri, label);
+            if (registered == null) {
+                minted.incrementAndGet();
+                if (attempt > 0) {
+                    collisions.incrementAndGet();
+                    LOGGER.info("Minted " + uri + " for \"" + label
+                            + "\" after " + attempt + " hash collisions");
+                }
+                return uri;
+            }
+            if (registered.equals(label)) {
+                return uri;
+            }
+        }
+    }
+
+    /**
+     * Register a URI given to a label other than by mint(), such as by an
+     * earlier version of the transform, so that it isn't minted for another
+     * label. Returns false if the URI is registered to another label.
+     */
+    public boolean register(String uri, String label) {
+        String registered = registry.putIfAbsent(uri, label);
+        return registered == null || registered.equals(label);
+    }
+
+    private static String localName(String label, int attempt) {
+
+        MessageDigest digest = DIGEST.get();
+        digest.update(label.getBytes(StandardCharsets.UTF_8));
+        if (attempt > 0) {
+            digest.update((byte) 0);
+            digest.update(Integer.toString(attempt).getBytes(
+                    StandardCharsets.UTF_8));
+        }
+        byte[] hash = digest.digest();
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (hash[i] & 0xff);
+        }
+        return String.format("%016x", bits);
+    }
+
+    /**
+     * Number of URIs in the registry.
+     */
+    public int size() {
+        return registry.size();
+    }
+
+    /**
+     * Number of new URIs minted since the registry was created or read.
+     */
+    public long getMinted() {
+        return minted.get();
+    }
+
+    /**
+     * Number of new URIs that were minted after their label's hash was
+     * found registered to another label.
+     */
+    public long getCollisions() {
+        return collisions.get();
+    }
+
+    /**
+     * Read a registry saved by save(), or return an empty one if the file
+     * doesn't exist.
+     */
+    public static UriMinter open(File file) throws IOException {
+
+        UriMinter minter = new UriMinter();
+        if (!file.exists()) {
+            return minter;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a URI registry: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String uri = in.readUTF();
+                minter.registry.put(uri, in.readUTF());
+            }
+        } finally {
+            in.close();
+        }
+        return minter;
+    }
+
+    /**
+     * Write the registry in URI order, replacing the file atomically. Not
+     * to be called while other threads are minting.
+     */
+    public void save(File file) throws IOException {
+
+        Map<String, String> sorted = new TreeMap<String, String>(registry);
+        AtomicFile atomicFile = new AtomicFile(file);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(atomicFile.getTempFile()),
+                            1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            atomicFile.commit();
+        } finally {
+            atomicFile.abort();
+        }
+    }
+}
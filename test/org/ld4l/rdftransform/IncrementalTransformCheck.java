@@ -0,0 +1,221 @@
+package org.ld4l.rdftransform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.jena.rdf.model.Literal;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.vocabulary.SKOS;
+
+/**
+ * Checks that an incremental run of SkosRbmsVocabTransformer writes the
+ * same output as a full run. For each change below, the input is first
+ * transformed incrementally as is, then changed and transformed
+ * incrementally again, which patches the first output; the patched output
+ * must parse to the same triples as a full run on the changed input.
+ *
+ *   label rename      a concept whose label other concepts' broader,
+ *                     narrower or related literals use gets a new label
+ *   new scheme        a concept moves to a scheme no concept was in before
+ *   vanished scheme   every concept of the smallest scheme moves to another
+ *                     existing scheme
+ *   scheme rename     every concept of the largest scheme moves to a new
+ *                     scheme, so one scheme vanishes and another appears
+ *
+ * Usage: IncrementalTransformCheck [input]
+ * Defaults to vocab/skos/rbms/input/rbms_vocabs_skos.rdf. Exits with status
+ * 1 if any check fails.
+ */
+public class IncrementalTransformCheck {
+
+    private static final String DEFAULT_INPUT =
+            "vocab/skos/rbms/input/rbms_vocabs_skos.rdf";
+
+    /**
+     * A change made to the input between the two incremental runs.
+     */
+    private interface Change {
+        void apply(Model model);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        File infile = new File(args.length > 0 ? args[0] : DEFAULT_INPUT);
+        Model input = RDFDataMgr.loadModel(infile.getPath());
+        File dir = TransformBenchmark.createTempDir();
+
+        Map<String, Change> changes = new TreeMap<String, Change>();
+        changes.put("label rename", new Change() {
+            @Override
+            public void apply(Model model) {
+                renameReferencedLabel(model);
+            }
+        });
+        changes.put("new scheme", new Change() {
+            @Override
+            public void apply(Model model) {
+                Statement stmt = model.listStatements((Resource) null,
+                        SKOS.hasTopConcept, (RDFNode) null).nextStatement();
+                stmt.changeObject("Incremental Check Scheme");
+            }
+        });
+        changes.put("vanished scheme", new Change() {
+            @Override
+            public void apply(Model model) {
+                List<String> labels = getSchemeLabelsBySize(model);
+                moveScheme(model, labels.get(0), labels.get(1));
+            }
+        });
+        changes.put("scheme rename", new Change() {
+            @Override
+            public void apply(Model model) {
+                List<String> labels = getSchemeLabelsBySize(model);
+                String largest = labels.get(labels.size() - 1);
+                moveScheme(model, largest, largest + " (renamed)");
+            }
+        });
+
+        int failures = 0;
+        for (Map.Entry<String, Change> entry : changes.entrySet()) {
+            String result = check(input, entry.getValue(), dir);
+            System.out.println(entry.getKey() + ": "
+                    + (result == null ? "ok" : "FAILED, " + result));
+            if (result != null) {
+                failures++;
+            }
+        }
+        dir.delete();
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Return null if the patched output of the change matches a full run's,
+     * or else what differs.
+     */
+    private static String check(Model input, Change change, File dir)
+            throws IOException {
+
+        File infile = new File(dir, "in.nt");
+        File patched = new File(dir, "patched.nt");
+        File full = new File(dir, "full.nt");
+        File manifest = new File(patched.getPath() + ".manifest");
+        try {
+            writeNTriples(input, infile);
+            transform(infile, patched, true);
+
+            Model changed = ModelFactory.createDefaultModel().add(input);
+            change.apply(changed);
+            writeNTriples(changed, infile);
+            RdfDataTransformer transformer = transform(infile, patched, true);
+            if (transformer.getMetrics().getCounter("subjectsRecomputed")
+                    == 0) {
+                return "the second run didn't patch the output";
+            }
+            transform(infile, full, false);
+
+            Model patchedModel = RDFDataMgr.loadModel(patched.getPath());
+            Model fullModel = RDFDataMgr.loadModel(full.getPath());
+            if (patchedModel.isIsomorphicWith(fullModel)) {
+                return null;
+            }
+            return patchedModel.difference(fullModel).size()
+                    + " triples only in the patched output, "
+                    + fullModel.difference(patchedModel).size()
+                    + " only in the full output";
+        } finally {
+            infile.delete();
+            patched.delete();
+            full.delete();
+            manifest.delete();
+        }
+    }
+
+    private static RdfDataTransformer transform(File infile, File outfile,
+            boolean incremental) {
+        SkosRbmsVocabTransformer transformer = new SkosRbmsVocabTransformer(
+                infile, outfile, RDFFormat.NTRIPLES);
+        transformer.setIncremental(incremental);
+        transformer.transform();
+        return transformer;
+    }
+
+    private static void writeNTriples(Model model, File file)
+            throws IOException {
+        OutputStream outStream = new FileOutputStream(file);
+        try {
+            RDFDataMgr.write(outStream, model, Lang.NTRIPLES);
+        } finally {
+            outStream.close();
+        }
+    }
+
+    /**
+     * Give a new label to the first concept whose label is the object of a
+     * skos:broader literal.
+     */
+    private static void renameReferencedLabel(Model model) {
+
+        for (Statement stmt : model.listStatements((Resource) null,
+                SKOS.broader, (RDFNode) null).toList()) {
+            if (!stmt.getObject().isLiteral()) {
+                continue;
+            }
+            Literal label = stmt.getLiteral();
+            List<Statement> labelled = model.listStatements((Resource) null,
+                    SKOS.prefLabel, label).toList();
+            if (!labelled.isEmpty()) {
+                labelled.get(0).changeObject(
+                        label.getLexicalForm() + " (renamed)");
+                return;
+            }
+        }
+        throw new IllegalStateException("No broader label names a concept");
+    }
+
+    /**
+     * Return the hasTopConcept labels, from the one fewest concepts use to
+     * the one most use.
+     */
+    private static List<String> getSchemeLabelsBySize(Model model) {
+
+        final Map<String, Integer> sizes = new TreeMap<String, Integer>();
+        for (Statement stmt : model.listStatements((Resource) null,
+                SKOS.hasTopConcept, (RDFNode) null).toList()) {
+            String label = stmt.getLiteral().getLexicalForm();
+            Integer size = sizes.get(label);
+            sizes.put(label, size == null ? 1 : size + 1);
+        }
+        List<String> labels = new ArrayList<String>(sizes.keySet());
+        Collections.sort(labels, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Integer.compare(sizes.get(a), sizes.get(b));
+            }
+        });
+        return labels;
+    }
+
+    private static void moveScheme(Model model, String from, String to) {
+        for (Statement stmt : model.listStatements((Resource) null,
+                SKOS.hasTopConcept, from).toList()) {
+            stmt.changeObject(to);
+        }
+    }
+}